@@ -0,0 +1,87 @@
+package org.sexyideas.moosificator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of a batch moosification, in JSON:
+ * <pre>
+ * {"items": [{"image": "http://...", "type": "moose", "name": "tim", "overlayImage": "http://...",
+ *             "debug": "true", "format": "jpeg"}, ...]}
+ * </pre>
+ * Only <code>image</code> is required, items are moosificated with a moose by default. The other fields are the
+ * parameters of the single image endpoints.
+ */
+public final class BatchRequest {
+
+    private List<Item> items = new ArrayList<>();
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public void setItems(List<Item> items) {
+        this.items = items;
+    }
+
+    public static final class Item {
+        private String image;
+        private String type;
+        private String name;
+        private String overlayImage;
+        private String debug;
+        private String format;
+
+        public String getImage() {
+            return image;
+        }
+
+        public void setImage(String image) {
+            this.image = image;
+        }
+
+        /**
+         * @return <code>antler</code>, <code>moose</code>, <code>named</code> or <code>remoose</code>, like the
+         * endpoints
+         */
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getOverlayImage() {
+            return overlayImage;
+        }
+
+        public void setOverlayImage(String overlayImage) {
+            this.overlayImage = overlayImage;
+        }
+
+        public String getDebug() {
+            return debug;
+        }
+
+        public void setDebug(String debug) {
+            this.debug = debug;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public void setFormat(String format) {
+            this.format = format;
+        }
+    }
+}
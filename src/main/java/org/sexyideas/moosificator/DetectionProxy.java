@@ -0,0 +1,182 @@
+package org.sexyideas.moosificator;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+
+import jjil.core.Gray8Image;
+import jjil.core.Rect;
+
+/**
+ * Small grayscale copy of a frame to run face detection on. It is built straight from the frame's pixels, averaging
+ * every source pixel into the proxy pixel it falls in, so a full resolution gray image is never materialized. Faces
+ * found on the proxy are mapped back to frame coordinates with {@link #toFrame(List)}.
+ */
+public final class DetectionProxy {
+
+    private final Gray8Image image;
+    private final double horizontalFactor;
+    private final double verticalFactor;
+
+    private DetectionProxy(Gray8Image image, double horizontalFactor, double verticalFactor) {
+        this.image = image;
+        this.horizontalFactor = horizontalFactor;
+        this.verticalFactor = verticalFactor;
+    }
+
+    /**
+     * @param frame the frame to detect faces in
+     * @param maxSide the length of the long side of the proxy, frames that already fit are kept at their size and
+     *                anything below 1 disables downscaling
+     * @return the detection proxy of the frame
+     */
+    public static DetectionProxy of(BufferedImage frame, int maxSide) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int longSide = Math.max(width, height);
+        int proxyWidth = width;
+        int proxyHeight = height;
+        if (maxSide > 0 && longSide > maxSide) {
+            proxyWidth = Math.max(1, (int) Math.round((double) width * maxSide / longSide));
+            proxyHeight = Math.max(1, (int) Math.round((double) height * maxSide / longSide));
+        }
+
+        // Proxy column of every frame column, computed once
+        int[] proxyColumns = new int[width];
+        for (int x = 0; x < width; x++) {
+            proxyColumns[x] = (int) ((long) x * proxyWidth / width);
+        }
+
+        byte[] gray = new byte[proxyWidth * proxyHeight];
+        RowReader rowReader = RowReader.of(frame);
+        int[] row = new int[width];
+        int[] sums = new int[proxyWidth];
+        int[] counts = new int[proxyWidth];
+        int proxyRow = 0;
+        for (int y = 0; y < height; y++) {
+            rowReader.read(y, row);
+            for (int x = 0; x < width; x++) {
+                sums[proxyColumns[x]] += row[x];
+                counts[proxyColumns[x]]++;
+            }
+
+            int nextProxyRow = y + 1 < height ? (int) ((long) (y + 1) * proxyHeight / height) : proxyHeight;
+            if (nextProxyRow != proxyRow) {
+                // Same averaging of the channels as jjil's RgbAvgGray, stored signed like any Gray8Image
+                for (int x = 0; x < proxyWidth; x++) {
+                    gray[proxyRow * proxyWidth + x] = (byte) (sums[x] / (3 * counts[x]) + Byte.MIN_VALUE);
+                    sums[x] = 0;
+                    counts[x] = 0;
+                }
+                proxyRow = nextProxyRow;
+            }
+        }
+
+        return new DetectionProxy(new Gray8Image(proxyWidth, proxyHeight, gray),
+                (double) width / proxyWidth, (double) height / proxyHeight);
+    }
+
+    public Gray8Image getImage() {
+        return image;
+    }
+
+    /**
+     * @param rectangles rectangles in proxy coordinates
+     * @return the same rectangles in frame coordinates
+     */
+    public List<Rect> toFrame(List<Rect> rectangles) {
+        List<Rect> mapped = new ArrayList<>(rectangles.size());
+        for (Rect rectangle : rectangles) {
+            mapped.add(new Rect(
+                    (int) Math.round(rectangle.getLeft() * this.horizontalFactor),
+                    (int) Math.round(rectangle.getTop() * this.verticalFactor),
+                    (int) Math.round(rectangle.getWidth() * this.horizontalFactor),
+                    (int) Math.round(rectangle.getHeight() * this.verticalFactor)));
+        }
+        return mapped;
+    }
+
+    /**
+     * Reads the sum of the red, green and blue samples of every pixel of a row. The averaging doesn't depend on the
+     * order of the channels, so interleaved byte rasters (what ImageIO decodes JPEGs and most PNGs to) and packed int
+     * rasters are read straight from their data buffer. Anything else goes through the much slower
+     * {@link BufferedImage#getRGB}.
+     */
+    private abstract static class RowReader {
+        abstract void read(int y, int[] row);
+
+        static RowReader of(final BufferedImage frame) {
+            final int width = frame.getWidth();
+            final WritableRaster raster = frame.getRaster();
+            ColorModel colorModel = frame.getColorModel();
+            SampleModel sampleModel = raster.getSampleModel();
+            boolean plainRgb = colorModel.getColorSpace().isCS_sRGB() && !colorModel.isAlphaPremultiplied()
+                    && colorModel.getNumColorComponents() == 3;
+
+            if (plainRgb && colorModel instanceof ComponentColorModel
+                    && sampleModel instanceof PixelInterleavedSampleModel
+                    && raster.getDataBuffer() instanceof DataBufferByte) {
+                final PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) sampleModel;
+                final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                final int[] bandOffsets = interleaved.getBandOffsets();
+                final int pixelStride = interleaved.getPixelStride();
+                final int scanlineStride = interleaved.getScanlineStride();
+                final int originX = raster.getMinX() - raster.getSampleModelTranslateX();
+                final int originY = raster.getMinY() - raster.getSampleModelTranslateY();
+                final int bufferOffset = raster.getDataBuffer().getOffset();
+                return new RowReader() {
+                    @Override
+                    void read(int y, int[] row) {
+                        int offset = bufferOffset + (originY + y) * scanlineStride + originX * pixelStride;
+                        int first = offset + bandOffsets[0];
+                        int second = offset + bandOffsets[1];
+                        int third = offset + bandOffsets[2];
+                        for (int x = 0; x < width; x++) {
+                            int pixel = x * pixelStride;
+                            row[x] = (data[first + pixel] & 0xff) + (data[second + pixel] & 0xff) + (data[third + pixel] & 0xff);
+                        }
+                    }
+                };
+            }
+
+            if (plainRgb && (frame.getType() == BufferedImage.TYPE_INT_RGB || frame.getType() == BufferedImage.TYPE_INT_ARGB
+                    || frame.getType() == BufferedImage.TYPE_INT_BGR)
+                    && sampleModel instanceof SinglePixelPackedSampleModel) {
+                final int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                final int scanlineStride = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+                final int originX = raster.getMinX() - raster.getSampleModelTranslateX();
+                final int originY = raster.getMinY() - raster.getSampleModelTranslateY();
+                final int bufferOffset = raster.getDataBuffer().getOffset();
+                return new RowReader() {
+                    @Override
+                    void read(int y, int[] row) {
+                        int offset = bufferOffset + (originY + y) * scanlineStride + originX;
+                        for (int x = 0; x < width; x++) {
+                            int pixel = data[offset + x];
+                            row[x] = ((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff);
+                        }
+                    }
+                };
+            }
+
+            return new RowReader() {
+                @Override
+                void read(int y, int[] row) {
+                    frame.getRGB(0, y, width, 1, row, 0, width);
+                    for (int x = 0; x < width; x++) {
+                        int rgb = row[x];
+                        row[x] = ((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff);
+                    }
+                }
+            };
+        }
+    }
+}
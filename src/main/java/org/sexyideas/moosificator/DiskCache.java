@@ -0,0 +1,294 @@
+package org.sexyideas.moosificator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Optional;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import static java.lang.String.format;
+
+/**
+ * Second tier of the result cache, kept on disk so it survives restarts. Results are appended to fixed size segment
+ * files that are memory-mapped, so hits are served from the mapped pages without copying them to the heap.
+ * <p/>
+ * Each record is self-describing (see {@link #append}) and the segments are the log the index is rebuilt from when
+ * the cache is opened. Once the segments use more than the maximum size, the oldest one is deleted with all the
+ * results it holds.
+ * <p/>
+ * A directory is only used by one cache at a time, two appending to the same segments would overwrite each other's
+ * records: the cache holds a lock on the directory for as long as it is open.
+ */
+public final class DiskCache {
+
+    private static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int RECORD_MAGIC = 0x4D4F4F53; // MOOS
+    private static final int KEY_BYTES = 32;
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("^(\\d+)\\.segment$");
+    private static final String LOCK_FILE = "lock";
+
+    private final Path directory;
+    private final int maxSegments;
+    private final String version;
+    // Held, never released, for as long as the process runs
+    private final FileLock lock;
+    private final Map<HashCode, Entry> index = new ConcurrentHashMap<>();
+
+    // Oldest first, the last one is the one being appended to. Guarded by this.
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private DiskCache(Path directory, int maxSegments, String version, FileLock lock) {
+        this.directory = directory;
+        this.maxSegments = maxSegments;
+        this.version = version;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens the cache in the given directory, indexing the results left there by previous runs.
+     *
+     * @param directory the directory of the segment files, created if needed
+     * @param maxBytes the space the segments may use, rounded to whole segments
+     * @param version the version of the moosifications, results stored under another version are never read and
+     *                age out
+     * @return the cache
+     * @throws IOException if the directory or its segments can't be read, or if another cache has it open
+     */
+    public static DiskCache open(Path directory, long maxBytes, String version) throws IOException {
+        Files.createDirectories(directory);
+        FileLock lock = lock(directory);
+        try {
+            DiskCache diskCache = new DiskCache(directory, (int) Math.max(2, maxBytes / SEGMENT_BYTES), version, lock);
+
+            List<Long> ids = new ArrayList<>();
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+                for (Path path : directoryStream) {
+                    Matcher matcher = SEGMENT_PATTERN.matcher(path.getFileName().toString());
+                    if (matcher.matches()) {
+                        ids.add(Long.parseLong(matcher.group(1)));
+                    }
+                }
+            }
+            Collections.sort(ids);
+
+            synchronized (diskCache) {
+                for (long id : ids) {
+                    Segment segment = diskCache.mapSegment(id);
+                    diskCache.segments.addLast(segment);
+                    diskCache.replay(segment);
+                }
+                diskCache.evictIfRequired();
+            }
+            MooseLogger.getLogger().log(Level.INFO, format("Opened disk cache in [%s] with %d results in %d segments",
+                    directory, diskCache.index.size(), ids.size()));
+            return diskCache;
+        } catch (IOException | RuntimeException e) {
+            lock.channel().close();
+            throw e;
+        }
+    }
+
+    /**
+     * Locks a directory for a cache, whether another process or this one has it open.
+     */
+    private static FileLock lock(Path directory) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException(format("Disk cache in [%s] is already open", directory));
+        }
+        return lock;
+    }
+
+    /**
+     * @return the key of a request on disk, a hash of the version and the normalized request
+     */
+    private HashCode keyOf(MooseRequest mooseRequest) {
+        return Hashing.sha256().newHasher()
+                .putString(this.version, StandardCharsets.UTF_8)
+                .putString(mooseRequest.getKey(), StandardCharsets.UTF_8)
+                .hash();
+    }
+
+    /**
+     * @return the cached result, backed by the mapped segment
+     */
+    public Optional<MooseResult> get(MooseRequest mooseRequest) {
+        Entry entry = this.index.get(keyOf(mooseRequest));
+        if (entry == null) {
+            return Optional.absent();
+        }
+
+        ByteBuffer content = entry.segment.buffer.duplicate();
+        content.position(entry.offset);
+        content.limit(entry.offset + entry.length);
+        return Optional.of(new MooseResult(content.slice(), entry.contentType, entry.etag));
+    }
+
+    /**
+     * Stores a result unless one is already cached for the request. Results that don't fit in a segment are not
+     * cached. Write errors are logged and the result is simply not cached.
+     */
+    public synchronized void put(MooseRequest mooseRequest, MooseResult result) {
+        HashCode key = keyOf(mooseRequest);
+        if (this.index.containsKey(key)) {
+            return;
+        }
+
+        byte[] contentType = result.getContentType().getBytes(StandardCharsets.UTF_8);
+        byte[] etag = result.getEtag().getBytes(StandardCharsets.UTF_8);
+        int recordLength = 4 + KEY_BYTES + 2 + contentType.length + 2 + etag.length + 4 + result.getSize();
+        if (recordLength > SEGMENT_BYTES) {
+            return;
+        }
+
+        try {
+            Segment segment = this.segments.peekLast();
+            if (segment == null || segment.end + recordLength > SEGMENT_BYTES) {
+                segment = mapSegment(segment == null ? 0 : segment.id + 1);
+                this.segments.addLast(segment);
+                evictIfRequired();
+            }
+            append(segment, key, contentType, etag, result);
+        } catch (IOException e) {
+            MooseLogger.getLogger().log(Level.WARNING,
+                    format("Error writing result for url [%s] to the disk cache", mooseRequest.getSource()), e);
+        }
+    }
+
+    /**
+     * Appends a record: magic, key, content type and etag (each prefixed by their length on 2 bytes), then the length
+     * of the content and the content itself. The magic is written last so a record cut short by a crash ends the
+     * replay of its segment rather than being read back.
+     */
+    private void append(Segment segment, HashCode key, byte[] contentType, byte[] etag, MooseResult result) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int start = segment.end;
+        buffer.position(start + 4);
+        buffer.put(key.asBytes());
+        buffer.putShort((short) contentType.length).put(contentType);
+        buffer.putShort((short) etag.length).put(etag);
+        buffer.putInt(result.getSize());
+        int offset = buffer.position();
+        buffer.put(result.getContent());
+        buffer.putInt(start, RECORD_MAGIC);
+
+        segment.end = buffer.position();
+        this.index.put(key, new Entry(segment, offset, result.getSize(),
+                new String(contentType, StandardCharsets.UTF_8), new String(etag, StandardCharsets.UTF_8)));
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        byte[] key = new byte[KEY_BYTES];
+        int end = 0;
+        try {
+            while (buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == RECORD_MAGIC) {
+                buffer.position(buffer.position() + 4);
+                buffer.get(key);
+                String contentType = readString(buffer);
+                String etag = readString(buffer);
+                int length = buffer.getInt();
+                int offset = buffer.position();
+                buffer.position(offset + length);
+                this.index.put(HashCode.fromBytes(key.clone()), new Entry(segment, offset, length, contentType, etag));
+                end = buffer.position();
+            }
+        } catch (RuntimeException e) {
+            // Garbled record, anything after it is lost and will be overwritten
+            MooseLogger.getLogger().log(Level.WARNING,
+                    format("Corrupted record at %d in disk cache segment %d", end, segment.id), e);
+        }
+        segment.end = end;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void evictIfRequired() {
+        while (this.segments.size() > this.maxSegments) {
+            Segment oldest = this.segments.removeFirst();
+            for (Iterator<Entry> entries = this.index.values().iterator(); entries.hasNext(); ) {
+                if (entries.next().segment == oldest) {
+                    entries.remove();
+                }
+            }
+            // Results already handed out keep reading the mapping, which outlives the file
+            File file = segmentPath(oldest.id).toFile();
+            if (!file.delete()) {
+                MooseLogger.getLogger().log(Level.WARNING, format("Could not delete disk cache segment [%s]", file));
+            }
+        }
+    }
+
+    private Segment mapSegment(long id) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentPath(id).toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+            return new Segment(id, channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES));
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return this.directory.resolve(format("%012d.segment", id));
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final MappedByteBuffer buffer;
+        private int end;
+
+        private Segment(long id, MappedByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Entry {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final String contentType;
+        private final String etag;
+
+        private Entry(Segment segment, int offset, int length, String contentType, String etag) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.contentType = contentType;
+            this.etag = etag;
+        }
+    }
+}
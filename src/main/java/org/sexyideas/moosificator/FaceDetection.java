@@ -0,0 +1,105 @@
+package org.sexyideas.moosificator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jjil.core.Rect;
+
+/**
+ * The faces found in an image, as returned in JSON:
+ * <pre>
+ * {"width": 1600, "height": 1200, "faces": [{"left": 610, "top": 220, "width": 310, "height": 310}],
+ *  "decodeMillis": 41, "detectionMillis": 87}
+ * </pre>
+ * Faces are in the coordinates of the source image, whatever size it was decoded and searched at. Animated GIFs are
+ * searched on their first frame.
+ */
+public final class FaceDetection {
+
+    private final int width;
+    private final int height;
+    private final List<Face> faces;
+    private final long decodeMillis;
+    private final long detectionMillis;
+
+    /**
+     * @param width the width of the source image
+     * @param height the height of the source image
+     * @param searchedWidth the width of the image the faces were found in
+     * @param searchedHeight the height of the image the faces were found in
+     * @param rectangles the faces found, in the coordinates of the searched image
+     */
+    public FaceDetection(int width, int height, int searchedWidth, int searchedHeight, List<Rect> rectangles,
+                         long decodeMillis, long detectionMillis) {
+        this.width = width;
+        this.height = height;
+        this.decodeMillis = decodeMillis;
+        this.detectionMillis = detectionMillis;
+
+        float xScale = width / (float) searchedWidth;
+        float yScale = height / (float) searchedHeight;
+        List<Face> faces = new ArrayList<>(rectangles.size());
+        for (Rect rectangle : rectangles) {
+            faces.add(new Face(Math.round(rectangle.getLeft() * xScale), Math.round(rectangle.getTop() * yScale),
+                    Math.round(rectangle.getWidth() * xScale), Math.round(rectangle.getHeight() * yScale)));
+        }
+        this.faces = Collections.unmodifiableList(faces);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public List<Face> getFaces() {
+        return faces;
+    }
+
+    /**
+     * @return the time it took to decode the image when its faces were first searched
+     */
+    public long getDecodeMillis() {
+        return decodeMillis;
+    }
+
+    /**
+     * @return the time it took to find the faces when they were first searched
+     */
+    public long getDetectionMillis() {
+        return detectionMillis;
+    }
+
+    public static final class Face {
+        private final int left;
+        private final int top;
+        private final int width;
+        private final int height;
+
+        private Face(int left, int top, int width, int height) {
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+        }
+
+        public int getLeft() {
+            return left;
+        }
+
+        public int getTop() {
+            return top;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.sexyideas.moosificator;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import jjil.core.Gray8Image;
+import jjil.core.Rect;
+
+/**
+ * Follows faces across the frames of an animation so the full multi-scale search only runs on keyframes: frames
+ * without any face to follow, every {@link MooseConfig#getTrackingKeyframeInterval()} frames and any frame that
+ * differs too much from the previous one. In between, each face of the previous frame is verified where it was and,
+ * if it moved, searched for in a small window around its last position at neighbouring scales. A face that didn't
+ * move keeps its exact rectangle, so overlays don't jitter from one frame to the next.
+ * <p/>
+ * The detector misses faces on some frames it finds them on right before and after, so faces a keyframe misses are
+ * kept for as long as they can still be followed.
+ * <p/>
+ * A tracker follows a single animation: frames must be tracked in order, from one thread at a time.
+ */
+public final class FaceTracker {
+
+    private final HaarCascade cascade;
+    private final ForkJoinPool detectionPool;
+    private final int keyframeInterval;
+    private final int sceneChangeThreshold;
+
+    // Detection proxy of the previous frame and the faces found on it, in proxy coordinates
+    private Gray8Image previousImage;
+    private List<Rect> previousFaces;
+    private int framesSinceKeyframe;
+
+    /**
+     * @param cascade the face cascade
+     * @param detectionPool the pool keyframes are searched on, null to search them on the calling thread
+     */
+    public FaceTracker(HaarCascade cascade, ForkJoinPool detectionPool) {
+        this.cascade = cascade;
+        this.detectionPool = detectionPool;
+        this.keyframeInterval = MooseConfig.getTrackingKeyframeInterval();
+        this.sceneChangeThreshold = MooseConfig.getTrackingSceneChange();
+    }
+
+    /**
+     * @param frame the next frame of the animation
+     * @return the faces in the frame, in frame coordinates
+     * @throws jjil.core.Error if the frame is too small to hold a face
+     */
+    public List<Rect> track(BufferedImage frame) throws jjil.core.Error {
+        DetectionProxy detectionProxy = DetectionProxy.of(frame, MooseConfig.getDetectionResolution());
+        Gray8Image image = detectionProxy.getImage();
+
+        List<Rect> faces = new ArrayList<>();
+        boolean keyframe = isKeyframe(image);
+        if (keyframe) {
+            Gray8DetectHaarMultiScale detectHaar = new Gray8DetectHaarMultiScale(this.cascade, 1, 30);
+            detectHaar.setPool(this.detectionPool);
+            faces.addAll(detectHaar.pushAndReturn(image));
+            this.framesSinceKeyframe = 0;
+        } else {
+            this.framesSinceKeyframe++;
+        }
+
+        if (this.previousFaces != null && this.previousImage.getWidth() == image.getWidth()
+                && this.previousImage.getHeight() == image.getHeight()) {
+            IntegralImage integral = new IntegralImage(image);
+            for (Rect previousFace : this.previousFaces) {
+                if (keyframe && overlapsAny(previousFace, faces)) {
+                    continue;
+                }
+                Rect face = follow(previousFace, integral);
+                if (face != null) {
+                    faces.add(face);
+                }
+            }
+        }
+
+        this.previousImage = image;
+        this.previousFaces = faces;
+        return detectionProxy.toFrame(faces);
+    }
+
+    private boolean isKeyframe(Gray8Image image) {
+        if (this.previousImage == null
+                || this.previousFaces.isEmpty()
+                || this.framesSinceKeyframe + 1 >= this.keyframeInterval
+                || this.previousImage.getWidth() != image.getWidth()
+                || this.previousImage.getHeight() != image.getHeight()) {
+            return true;
+        }
+
+        // Mean absolute difference of the gray levels
+        byte[] previous = this.previousImage.getData();
+        byte[] current = image.getData();
+        long difference = 0;
+        for (int i = 0; i < current.length; i++) {
+            difference += Math.abs(current[i] - previous[i]);
+        }
+        return difference > (long) this.sceneChangeThreshold * current.length;
+    }
+
+    /**
+     * @return the face closest to where it was in the previous frame, null if it can't be found around there
+     */
+    private Rect follow(Rect previousFace, IntegralImage integral) {
+        int previousScale = Math.max(1, previousFace.getWidth() / this.cascade.getWidth());
+        HaarCascade.Scaled unchanged = this.cascade.scale(previousScale, integral);
+        if (fits(previousFace.getLeft(), previousFace.getTop(), unchanged, integral)
+                && unchanged.eval(previousFace.getLeft(), previousFace.getTop())) {
+            return previousFace;
+        }
+
+        int centerX = previousFace.getLeft() + previousFace.getWidth() / 2;
+        int centerY = previousFace.getTop() + previousFace.getHeight() / 2;
+        int margin = Math.max(2, previousFace.getWidth() / 4);
+        Rect closest = null;
+        long closestDistance = Long.MAX_VALUE;
+        for (int scale = Math.max(1, previousScale - 1); scale <= previousScale + 1; scale++) {
+            HaarCascade.Scaled scaled = this.cascade.scale(scale, integral);
+            int windowWidth = scaled.getWindowWidth();
+            int windowHeight = scaled.getWindowHeight();
+            if (windowWidth > integral.getWidth() || windowHeight > integral.getHeight()) {
+                break;
+            }
+
+            int step = Math.max(1, scale / 2);
+            int left = Math.max(0, centerX - windowWidth / 2 - margin);
+            int right = Math.min(integral.getWidth() - windowWidth, centerX - windowWidth / 2 + margin);
+            int top = Math.max(0, centerY - windowHeight / 2 - margin);
+            int bottom = Math.min(integral.getHeight() - windowHeight, centerY - windowHeight / 2 + margin);
+            for (int y = top; y <= bottom; y += step) {
+                for (int x = left; x <= right; x += step) {
+                    if (scaled.eval(x, y)) {
+                        long dx = x + windowWidth / 2 - centerX;
+                        long dy = y + windowHeight / 2 - centerY;
+                        if (dx * dx + dy * dy < closestDistance) {
+                            closestDistance = dx * dx + dy * dy;
+                            closest = new Rect(x, y, windowWidth, windowHeight);
+                        }
+                    }
+                }
+            }
+        }
+        return closest;
+    }
+
+    private static boolean overlapsAny(Rect face, List<Rect> faces) {
+        int centerX = face.getLeft() + face.getWidth() / 2;
+        int centerY = face.getTop() + face.getHeight() / 2;
+        for (Rect other : faces) {
+            if (other.getLeft() <= centerX && centerX < other.getLeft() + other.getWidth()
+                    && other.getTop() <= centerY && centerY < other.getTop() + other.getHeight()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean fits(int x, int y, HaarCascade.Scaled scaled, IntegralImage integral) {
+        return x >= 0 && y >= 0
+                && x + scaled.getWindowWidth() <= integral.getWidth()
+                && y + scaled.getWindowHeight() <= integral.getHeight();
+    }
+}
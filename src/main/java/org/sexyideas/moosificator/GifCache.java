@@ -0,0 +1,216 @@
+package org.sexyideas.moosificator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * Memory cache of moosificated animated GIFs, bounded by their size rather than their number: animations range from
+ * a few KB to tens of MB.
+ * <p/>
+ * How often each animation is asked for is estimated by a small frequency sketch, TinyLFU style. A result that fits
+ * in the room left is always admitted, one that would evict others is only admitted once it was asked for at least
+ * {@link #ADMISSION_FREQUENCY} times recently: a huge animation asked for once doesn't push out popular ones.
+ * <p/>
+ * Failures aren't cached: they would be served for as long as the animation keeps being asked for.
+ */
+public final class GifCache {
+
+    private static final int ADMISSION_FREQUENCY = 2;
+    private static final int SKETCH_WIDTH = 4096;
+
+    private final long maxBytes;
+    private final Cache<MooseRequest, MooseResult> cache;
+    private final FrequencySketch sketch = new FrequencySketch(SKETCH_WIDTH);
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong admissions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes the total size of the animations kept
+     */
+    public GifCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.cache = CacheBuilder.newBuilder()
+                // A single segment, segments each get an equal share of the budget and a big animation wouldn't fit
+                .concurrencyLevel(1)
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<MooseRequest, MooseResult>() {
+                    @Override
+                    public int weigh(MooseRequest mooseRequest, MooseResult result) {
+                        return result.getSize();
+                    }
+                })
+                .expireAfterAccess(1, TimeUnit.DAYS)
+                .removalListener(new RemovalListener<MooseRequest, MooseResult>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<MooseRequest, MooseResult> notification) {
+                        bytes.addAndGet(-notification.getValue().getSize());
+                        if (notification.wasEvicted()) {
+                            evictions.incrementAndGet();
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Looks a moosification up, counting a hit towards its admission. Requests are only known to be for an animation
+     * once their image is fetched, so a lookup that finds nothing isn't a miss yet, see {@link #recordMiss}.
+     *
+     * @return the cached result, null if there is none
+     */
+    public MooseResult getIfPresent(MooseRequest mooseRequest) {
+        MooseResult result = this.cache.getIfPresent(mooseRequest);
+        if (result != null) {
+            this.sketch.increment(mooseRequest);
+            this.hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Counts a request for an animation that wasn't cached towards its admission, once its image is known to be one.
+     */
+    public void recordMiss(MooseRequest mooseRequest) {
+        this.sketch.increment(mooseRequest);
+        this.misses.incrementAndGet();
+    }
+
+    /**
+     * Caches a moosification that was missing, if it succeeded and is admitted.
+     */
+    public void put(MooseRequest mooseRequest, Optional<MooseResult> result) {
+        if (!result.isPresent()) {
+            return;
+        }
+
+        int weight = result.get().getSize();
+        boolean fits = this.bytes.get() + weight <= this.maxBytes;
+        if (weight > this.maxBytes || !fits && this.sketch.frequency(mooseRequest) < ADMISSION_FREQUENCY) {
+            this.rejections.incrementAndGet();
+            return;
+        }
+
+        this.admissions.incrementAndGet();
+        this.bytes.addAndGet(weight);
+        this.cache.put(mooseRequest, result.get());
+    }
+
+    /**
+     * @return the counters of the cache since it was created, by name
+     */
+    public Map<String, Object> getStats() {
+        long hitCount = this.hits.get();
+        long missCount = this.misses.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", hitCount + missCount == 0 ? 1.0 : hitCount / (double) (hitCount + missCount));
+        stats.put("admissions", this.admissions.get());
+        stats.put("rejections", this.rejections.get());
+        stats.put("evictions", this.evictions.get());
+        stats.put("entries", this.cache.size());
+        stats.put("bytes", this.bytes.get());
+        stats.put("maxBytes", this.maxBytes);
+        return stats;
+    }
+
+    /**
+     * Count-min sketch of how often keys were seen: each key increments a 4 bit counter in each of four rows and its
+     * frequency is the smallest of them. Counters are halved once the sketch has counted ten times its width so old
+     * popularity fades.
+     */
+    private static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final long[] SEEDS = {0x97CB3127L, 0xB492B66FL, 0x9AE16A3BL, 0xC3A5C85CL};
+
+        // Counters of a row are packed 16 to a long
+        private final AtomicLongArray table;
+        private final int counters;
+        private final int sampleSize;
+        private final AtomicLong additions = new AtomicLong();
+
+        private FrequencySketch(int width) {
+            this.counters = Integer.highestOneBit(Math.max(16, width));
+            this.table = new AtomicLongArray(ROWS * this.counters / 16);
+            this.sampleSize = 10 * this.counters;
+        }
+
+        private void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int row = 0; row < ROWS; row++) {
+                added |= incrementAt(indexOf(hash, row));
+            }
+            if (added && this.additions.incrementAndGet() % this.sampleSize == 0) {
+                age();
+            }
+        }
+
+        private int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                frequency = Math.min(frequency, countAt(indexOf(hash, row)));
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return row * this.counters + ((int) h & (this.counters - 1));
+        }
+
+        private int countAt(int index) {
+            return (int) (this.table.get(index >>> 4) >>> ((index & 15) << 2)) & MAX_COUNT;
+        }
+
+        /**
+         * @return false if the counter is saturated
+         */
+        private boolean incrementAt(int index) {
+            int shift = (index & 15) << 2;
+            while (true) {
+                long word = this.table.get(index >>> 4);
+                if (((word >>> shift) & MAX_COUNT) == MAX_COUNT) {
+                    return false;
+                }
+                if (this.table.compareAndSet(index >>> 4, word, word + (1L << shift))) {
+                    return true;
+                }
+            }
+        }
+
+        private void age() {
+            for (int i = 0; i < this.table.length(); i++) {
+                while (true) {
+                    long word = this.table.get(i);
+                    // Halves the 16 counters at once, the mask drops the bit each one gets from its neighbour
+                    if (this.table.compareAndSet(i, word, (word >>> 1) & 0x7777777777777777L)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        private static int spread(int hash) {
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.sexyideas.moosificator;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+
+import com.sun.imageio.plugins.gif.GIFImageReader;
+import com.sun.imageio.plugins.gif.GIFImageReaderSpi;
+import com.sun.imageio.plugins.gif.GIFImageWriter;
+import com.sun.imageio.plugins.gif.GIFImageWriterSpi;
+
+/**
+ * Pools of GIF readers and writers, reset when they are released rather than built for each animation. A released
+ * codec beyond the idle limit of its pool is disposed of.
+ */
+public final class GifCodecs {
+
+    private static final int MAX_IDLE = 16;
+    private static final GIFImageReaderSpi READER_SPI = new GIFImageReaderSpi();
+    private static final GIFImageWriterSpi WRITER_SPI = new GIFImageWriterSpi();
+
+    private static final Queue<ImageReader> READERS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger IDLE_READERS = new AtomicInteger();
+    private static final Queue<ImageWriter> WRITERS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger IDLE_WRITERS = new AtomicInteger();
+
+    private GifCodecs() {
+    }
+
+    /**
+     * @return a reader without input, to be given back with {@link #release(ImageReader)}
+     */
+    public static ImageReader acquireReader() {
+        ImageReader reader = READERS.poll();
+        if (reader == null) {
+            return new GIFImageReader(READER_SPI);
+        }
+        IDLE_READERS.decrementAndGet();
+        return reader;
+    }
+
+    public static void release(ImageReader reader) {
+        reader.reset();
+        if (IDLE_READERS.incrementAndGet() > MAX_IDLE) {
+            IDLE_READERS.decrementAndGet();
+            reader.dispose();
+        } else {
+            READERS.offer(reader);
+        }
+    }
+
+    /**
+     * @return a writer without output, to be given back with {@link #release(ImageWriter)}
+     */
+    public static ImageWriter acquireWriter() {
+        ImageWriter writer = WRITERS.poll();
+        if (writer == null) {
+            return new GIFImageWriter(WRITER_SPI);
+        }
+        IDLE_WRITERS.decrementAndGet();
+        return writer;
+    }
+
+    public static void release(ImageWriter writer) {
+        writer.reset();
+        if (IDLE_WRITERS.incrementAndGet() > MAX_IDLE) {
+            IDLE_WRITERS.decrementAndGet();
+            writer.dispose();
+        } else {
+            WRITERS.offer(writer);
+        }
+    }
+}
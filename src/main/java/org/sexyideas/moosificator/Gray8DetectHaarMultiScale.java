@@ -22,22 +22,14 @@ package org.sexyideas.moosificator;
  *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
  *
  */
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import jjil.algorithm.ErrorCodes;
-import jjil.algorithm.Gray8Rect;
-import jjil.algorithm.Gray8RectStretch;
-import jjil.algorithm.Gray8Shrink;
-import jjil.algorithm.HaarClassifierCascade;
-import jjil.algorithm.MaskedGray8SubImgGen;
 
 import jjil.core.Error;
 import jjil.core.Gray8Image;
-import jjil.core.Gray8MaskedImage;
-import jjil.core.Gray8OffsetImage;
 import jjil.core.Image;
 import jjil.core.PipelineStage;
 import jjil.core.Rect;
@@ -55,6 +47,11 @@ import jjil.core.Rect;
  * skipped. When transitioning to a finer scale, the mask is stretched to the new
  * size. This results in areas where features have been detected at a coarser scale
  * not being re-searched at a finer scale.<br>
+ * Rather than shrinking the image and masking it at every scale, a single
+ * {@link IntegralImage} is computed per image and the cascade's feature
+ * rectangles are scaled to each window size (see {@link HaarCascade#scale}), so
+ * scanning windows doesn't allocate. Windows are laid out on the same grid the
+ * shrunk images used, and the mask is kept as the list of rectangles found so far.<br>
  * Gray8DetectHaarMultiScale is structured as a pipeline stage so push'ing an image
  * results in a new mask being available on getFront. The mask can be further processed
  * by doing connected component detection to determine the feature characteristics,
@@ -63,7 +60,7 @@ import jjil.core.Rect;
  * @author webb
  */
 public class Gray8DetectHaarMultiScale extends PipelineStage {
-    private HaarClassifierCascade hcc;
+    private final HaarCascade hcc;
     // maximum scale is the largest factor the image is divided by
     private int nMaxScale = 10;
     // minimum scale is the smallest factor the image is divided by
@@ -71,30 +68,26 @@ public class Gray8DetectHaarMultiScale extends PipelineStage {
     // scale change is the change in scale from one search to the next
     // times 256
     private int nScaleChange = 12 * 256 / 10;
+    // pool to scan scales and bands of rows on, serial detection when null
+    private ForkJoinPool pool;
+    // bands of fewer rows of windows than this are scanned by a single task
+    private static final int MIN_ROWS_PER_TASK = 4;
        
     /**
      * Creates a new instance of Gray8DetectHaarMultiScale. The scale parameters correspond
      * to the size of a square area in the original input image that are averaged to
      * create a single pixel in the image used for detection. A scale factor of 1 would
      * do detection at full image resolution.
-     * @param is Input stream containing the Haar cascade. This input stream is created
-     * by the Haar2J2me program (run on a PC) from a Haar cascade that has been
-     * trained using the OpenCV. See {http://sourceforge.net/projects/opencv} for
-     * more information about the OpenCV. The Haar2J2me program should be available
-     * wherever you got this code from.
+     * @param hcc The Haar cascade, typically parsed once with {@link HaarCascade#fromStream}
+     * and shared by every detector since it is immutable.
      * @param nMinScale Minimum (finest) scale at which features will be detected.
      * @param nMaxScale Maximum (coarsest) scale at which features will be detected.
-     * @throws jjil.core.Error if there is an error in the input file.
-     * @throws java.io.IOException if there is an I/O error reading the input file.
      */
-    public Gray8DetectHaarMultiScale(InputStream is, int nMinScale, int nMaxScale) 
-    	throws jjil.core.Error, IOException
+    public Gray8DetectHaarMultiScale(HaarCascade hcc, int nMinScale, int nMaxScale)
     {
+        this.hcc = hcc;
         this.nMinScale = nMinScale;
         this.nMaxScale = nMaxScale;
-        // load Haar classifier cascade
-        InputStreamReader isr = new InputStreamReader(is);
-        this.hcc = HaarClassifierCascade.fromStream(isr);
     }
     
     /**
@@ -134,66 +127,95 @@ public class Gray8DetectHaarMultiScale extends PipelineStage {
         int nScale = Math.min(this.nMaxScale, 
                 Math.min(image.getWidth() / this.hcc.getWidth(),
                 image.getHeight() / this.hcc.getHeight()));
-        // Zero the mask
-        Gray8Image imMask = new Gray8Image(1,1,Byte.MIN_VALUE);
+        // one integral image serves every scale
+        IntegralImage integral = new IntegralImage(imGray);
+        List<ScaleLevel> levels = new ArrayList<ScaleLevel>();
         while (nScale >= this.nMinScale) {
-            // shrink the input image
-            int nTargetWidth = imGray.getWidth() / nScale;
-            int nTargetHeight = imGray.getHeight() / nScale;
-            Gray8Shrink gs = new Gray8Shrink(nTargetWidth, nTargetHeight);
-            gs.push(imGray);
-            Gray8Image imShrunk = (Gray8Image) gs.getFront();
-            // scale the mask to the new size
-            Gray8RectStretch grs = new Gray8RectStretch(nTargetWidth, nTargetHeight);
-            grs.push(imMask);
-            imMask = (Gray8Image) grs.getFront();
-            // combine the image and mask to make a masked image
-            Gray8MaskedImage gmi = new Gray8MaskedImage(imShrunk, imMask);
-            // pass the masked image to a subimage generator
-            MaskedGray8SubImgGen mgsi = new MaskedGray8SubImgGen(
-                    this.hcc.getWidth(),
-                    this.hcc.getHeight(),
-                    Math.max(1, gmi.getWidth() / 30),
-                    Math.max(1, gmi.getHeight() / 30));
-            mgsi.push(gmi);
-            // now run Haar detection on each scaled image
-            int nxLastFound = -hcc.getWidth();
-            int nyLastFound = -hcc.getHeight();
-            while (!mgsi.isEmpty()) {
-                Gray8OffsetImage imSub = (Gray8OffsetImage) mgsi.getFront();
-                // if we've found a feature recently we skip forward until
-                // we're outside the masked region. There's no point rerunning
-                // the detector
-                if (imSub.getXOffset() > nxLastFound + hcc.getWidth() &&
-                    imSub.getYOffset() > nyLastFound + hcc.getHeight()) {
-                    if (hcc.eval(imSub)) {
-                        // Found something. 
-                        nxLastFound = imSub.getXOffset();
-                        nyLastFound = imSub.getYOffset();
-                        // assign Byte.MAX_VALUE to the feature area so we don't
-                        // search it again
-                        result.add(new Rect(nxLastFound*nScale, nyLastFound*nScale,
-                                this.hcc.getWidth()*nScale,
-                                this.hcc.getHeight()*nScale));
-
-                        Gray8Rect gr = new Gray8Rect(nxLastFound, 
-                                nyLastFound, 
-                                this.hcc.getWidth(), 
-                                this.hcc.getHeight(), 
-                                Byte.MAX_VALUE);
-                        gr.push(imMask);
-                        imMask = (Gray8Image) gr.getFront();
-                     }
+            levels.add(new ScaleLevel(this.hcc.scale(nScale, integral), imGray.getWidth(), imGray.getHeight()));
+            nScale = nScale * 256 / this.nScaleChange;
+        }
+
+        if (this.pool == null) {
+            for (ScaleLevel level : levels) {
+                LevelScan scan = new LevelScan(level, result);
+                for (int nRow = 0; nRow < level.nRows; nRow++) {
+                    int y = nRow * level.nyStep;
+                    for (int nColumn = 0; nColumn < level.nColumns; nColumn++) {
+                        int x = nColumn * level.nxStep;
+                        if (scan.isSearched(x, y) && level.scaled.eval(x, y)) {
+                            scan.found(x, y);
+                        }
+                    }
+                }
+            }
+        } else {
+            // Levels and row bands are scanned independently so neither the mask nor the skip after a hit can be
+            // shared while scanning: every window is evaluated, then the hits are replayed in the serial order
+            // through the same rules. Windows that don't pass the cascade change nothing, so the results are the
+            // serial ones.
+            List<List<Rect>> hits = this.pool.invoke(new LevelsTask(levels));
+            for (int i = 0; i < levels.size(); i++) {
+                LevelScan scan = new LevelScan(levels.get(i), result);
+                for (Rect hit : hits.get(i)) {
+                    if (scan.isSearched(hit.getLeft(), hit.getTop())) {
+                        scan.found(hit.getLeft(), hit.getTop());
+                    }
                 }
             }
-            nScale = nScale * 256 / this.nScaleChange;
         }
-        // Stretch imMask to original image size; this is the result
-        Gray8RectStretch grs = new Gray8RectStretch(image.getWidth(), image.getHeight());
-        grs.push(imMask);
-        super.setOutput(grs.getFront());
+
+        // the mask of the original image size is the result
+        Gray8Image imMask = new Gray8Image(image.getWidth(), image.getHeight(), Byte.MIN_VALUE);
+        for (Rect found : result) {
+            imMask.fill(found, Byte.MAX_VALUE);
+        }
+        super.setOutput(imMask);
         return result;
     }
+
+    /**
+     * Runs the cascade on every window in rows [nRowFrom, nRowTo) of the window grid of a scale,
+     * without masking or skipping any.
+     * @param level The scale.
+     * @param nRowFrom First row of windows.
+     * @param nRowTo Row of windows after the last one.
+     * @return The windows the cascade passes, row by row.
+     */
+    private static List<Rect> evalRows(ScaleLevel level, int nRowFrom, int nRowTo) {
+        HaarCascade.Scaled scaled = level.scaled;
+        List<Rect> hits = new ArrayList<Rect>();
+        for (int nRow = nRowFrom; nRow < nRowTo; nRow++) {
+            int y = nRow * level.nyStep;
+            for (int nColumn = 0; nColumn < level.nColumns; nColumn++) {
+                int x = nColumn * level.nxStep;
+                if (scaled.eval(x, y)) {
+                    hits.add(new Rect(x, y, scaled.getWindowWidth(), scaled.getWindowHeight()));
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static boolean isMasked(List<Rect> found, int x, int y) {
+        for (int i = 0; i < found.size(); i++) {
+            Rect rect = found.get(i);
+            if (x >= rect.getLeft() && x < rect.getLeft() + rect.getWidth() &&
+                y >= rect.getTop() && y < rect.getTop() + rect.getHeight()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the pool detection runs on. With a pool, the scales and bands of rows of
+     * each scale are scanned in parallel; without one (the default) everything runs
+     * on the calling thread.
+     * @param pool The pool, usually shared by every detector, or null to detect serially.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
      
     /**
      * Set minimum and maximum scale.
@@ -208,4 +230,122 @@ public class Gray8DetectHaarMultiScale extends PipelineStage {
         this.nMinScale = nMinScale;
         this.nMaxScale = nMaxScale;
     }
-}
\ No newline at end of file
+
+    /**
+     * The window grid of one scale: windows are laid out on the grid of the image
+     * shrunk by the scale, in full resolution coordinates.
+     */
+    private static final class ScaleLevel {
+        private final HaarCascade.Scaled scaled;
+        private final int nxStep;
+        private final int nyStep;
+        private final int nColumns;
+        private final int nRows;
+
+        private ScaleLevel(HaarCascade.Scaled scaled, int nImageWidth, int nImageHeight) {
+            int nScale = scaled.getScale();
+            int nTargetWidth = nImageWidth / nScale;
+            int nTargetHeight = nImageHeight / nScale;
+            int nCascadeWidth = scaled.getWindowWidth() / nScale;
+            int nCascadeHeight = scaled.getWindowHeight() / nScale;
+            int nxShrunkStep = Math.max(1, nTargetWidth / 30);
+            int nyShrunkStep = Math.max(1, nTargetHeight / 30);
+            this.scaled = scaled;
+            this.nxStep = nxShrunkStep * nScale;
+            this.nyStep = nyShrunkStep * nScale;
+            this.nColumns = (nTargetWidth - nCascadeWidth) / nxShrunkStep + 1;
+            this.nRows = (nTargetHeight - nCascadeHeight) / nyShrunkStep + 1;
+        }
+    }
+
+    /**
+     * Which windows of a scale are searched, visited in row order: windows centered in a
+     * rectangle already found, at this scale or a coarser one, are skipped, and so are the
+     * windows that aren't past the last one found.
+     */
+    private static final class LevelScan {
+        private final int nWindowWidth;
+        private final int nWindowHeight;
+        private final List<Rect> result;
+        private int nxLastFound;
+        private int nyLastFound;
+
+        private LevelScan(ScaleLevel level, List<Rect> result) {
+            this.nWindowWidth = level.scaled.getWindowWidth();
+            this.nWindowHeight = level.scaled.getWindowHeight();
+            this.result = result;
+            this.nxLastFound = -this.nWindowWidth;
+            this.nyLastFound = -this.nWindowHeight;
+        }
+
+        private boolean isSearched(int x, int y) {
+            // if we've found a feature recently we skip forward until
+            // we're outside the masked region. There's no point rerunning
+            // the detector
+            return !isMasked(this.result, x + this.nWindowWidth / 2, y + this.nWindowHeight / 2) &&
+                x > this.nxLastFound + this.nWindowWidth &&
+                y > this.nyLastFound + this.nWindowHeight;
+        }
+
+        private void found(int x, int y) {
+            this.nxLastFound = x;
+            this.nyLastFound = y;
+            this.result.add(new Rect(x, y, this.nWindowWidth, this.nWindowHeight));
+        }
+    }
+
+    /**
+     * Evaluates every scale, each in its own task, and returns the hits of each scale from
+     * the coarsest scale to the finest.
+     */
+    private static final class LevelsTask extends RecursiveTask<List<List<Rect>>> {
+        private final List<ScaleLevel> levels;
+
+        private LevelsTask(List<ScaleLevel> levels) {
+            this.levels = levels;
+        }
+
+        @Override
+        protected List<List<Rect>> compute() {
+            List<BandTask> bands = new ArrayList<BandTask>();
+            for (ScaleLevel level : this.levels) {
+                bands.add(new BandTask(level, 0, level.nRows));
+            }
+            invokeAll(bands);
+            List<List<Rect>> result = new ArrayList<List<Rect>>();
+            for (BandTask band : bands) {
+                result.add(band.join());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Evaluates a band of rows of one scale, splitting it in halves while it is large enough.
+     */
+    private static final class BandTask extends RecursiveTask<List<Rect>> {
+        private final ScaleLevel level;
+        private final int nRowFrom;
+        private final int nRowTo;
+
+        private BandTask(ScaleLevel level, int nRowFrom, int nRowTo) {
+            this.level = level;
+            this.nRowFrom = nRowFrom;
+            this.nRowTo = nRowTo;
+        }
+
+        @Override
+        protected List<Rect> compute() {
+            if (this.nRowTo - this.nRowFrom < 2 * MIN_ROWS_PER_TASK) {
+                return evalRows(this.level, this.nRowFrom, this.nRowTo);
+            }
+            int nRowMiddle = (this.nRowFrom + this.nRowTo) / 2;
+            BandTask top = new BandTask(this.level, this.nRowFrom, nRowMiddle);
+            BandTask bottom = new BandTask(this.level, nRowMiddle, this.nRowTo);
+            invokeAll(top, bottom);
+            List<Rect> result = top.join();
+            result.addAll(bottom.join());
+            return result;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package org.sexyideas.moosificator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import jjil.algorithm.ErrorCodes;
+import jjil.core.Error;
+
+/**
+ * Immutable Haar classifier cascade (stump based) read from the jjil text profile format, e.g.
+ * <code>/profiles/HCSB.txt</code>. jjil's own {@link jjil.algorithm.HaarClassifierCascade} keeps per-evaluation
+ * state (window width, standard deviation and derived thresholds) in its fields, so it has to be re-parsed for every
+ * detector. This one is parsed once and only holds final arrays, so a single instance can be shared by every
+ * request thread.
+ * <p/>
+ * Windows are classified on an {@link IntegralImage} with the feature rectangles scaled to the window size
+ * (see {@link #scale}), following jjil's thresholds so detections stay close to what its shrink and
+ * sub-image pipeline found.
+ */
+public final class HaarCascade {
+
+    public static final String DEFAULT_PROFILE = "/profiles/HCSB.txt";
+
+    private static final int RECTS_PER_FEATURE = 3;
+
+    private final int width;
+    private final int height;
+
+    // Stage k owns weak classifiers [stageFirstStump[k], stageFirstStump[k + 1])
+    private final int[] stageFirstStump;
+    private final int[] stageThreshold;
+
+    // Weak classifier (stump) i
+    private final int[] stumpThreshold;
+    private final int[] stumpBelow;
+    private final int[] stumpAbove;
+
+    // Rectangle j of stump i is at index i * RECTS_PER_FEATURE + j
+    private final int[] rectLeft;
+    private final int[] rectTop;
+    private final int[] rectWidth;
+    private final int[] rectHeight;
+    private final int[] rectWeight;
+
+    private HaarCascade(Parser parser) throws Error {
+        parser.expect("(hcsb");
+        this.width = parser.nextInt();
+        this.height = parser.nextInt();
+        int stageCount = parser.nextInt();
+
+        this.stageFirstStump = new int[stageCount + 1];
+        this.stageThreshold = new int[stageCount];
+        IntList thresholds = new IntList();
+        IntList below = new IntList();
+        IntList above = new IntList();
+        IntList rects = new IntList();
+
+        for (int stage = 0; stage < stageCount; stage++) {
+            parser.expect("(hcs");
+            int stumpCount = parser.nextInt();
+            this.stageFirstStump[stage] = thresholds.size();
+            for (int stump = 0; stump < stumpCount; stump++) {
+                parser.expect("(hwcs");
+                parser.expect("(hf");
+                for (int r = 0; r < RECTS_PER_FEATURE; r++) {
+                    parser.expect("(hr");
+                    for (int value = 0; value < 5; value++) {
+                        rects.add(parser.nextInt());
+                    }
+                    parser.expect(")");
+                }
+                // Tilted features are not supported by the stump cascade, the flag is ignored just like jjil does
+                parser.nextInt();
+                parser.expect(")");
+                thresholds.add(parser.nextInt());
+                below.add(parser.nextInt());
+                above.add(parser.nextInt());
+                parser.expect(")");
+            }
+            this.stageThreshold[stage] = parser.nextInt();
+            parser.expect(")");
+        }
+        parser.expect(")");
+        this.stageFirstStump[stageCount] = thresholds.size();
+
+        this.stumpThreshold = thresholds.toArray();
+        this.stumpBelow = below.toArray();
+        this.stumpAbove = above.toArray();
+
+        int rectCount = rects.size() / 5;
+        this.rectLeft = new int[rectCount];
+        this.rectTop = new int[rectCount];
+        this.rectWidth = new int[rectCount];
+        this.rectHeight = new int[rectCount];
+        this.rectWeight = new int[rectCount];
+        int[] values = rects.toArray();
+        for (int i = 0; i < rectCount; i++) {
+            this.rectLeft[i] = values[i * 5];
+            this.rectTop[i] = values[i * 5 + 1];
+            this.rectWidth[i] = values[i * 5 + 2];
+            this.rectHeight[i] = values[i * 5 + 3];
+            this.rectWeight[i] = values[i * 5 + 4];
+        }
+    }
+
+    /**
+     * Parses a cascade in the jjil text profile format.
+     *
+     * @param is the profile stream, closed once read
+     * @return the parsed cascade
+     * @throws jjil.core.Error if the profile is malformed
+     * @throws IOException if the profile can't be read
+     */
+    public static HaarCascade fromStream(InputStream is) throws Error, IOException {
+        try (Reader reader = new InputStreamReader(is, StandardCharsets.US_ASCII)) {
+            StringBuilder profile = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                profile.append(buffer, 0, read);
+            }
+            return new HaarCascade(new Parser(profile));
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Prepares the cascade to classify windows <code>scale</code> times its size in the given integral image.
+     * The feature rectangles are scaled rather than the image, so any number of windows can then be evaluated
+     * without allocating.
+     *
+     * @param scale the integer scale factor, 1 classifies windows of exactly {@link #getWidth()} by {@link #getHeight()}
+     * @param integral the integral image the windows will be read from
+     * @return the scaled cascade
+     */
+    public Scaled scale(int scale, IntegralImage integral) {
+        return new Scaled(scale, integral);
+    }
+
+    @Override
+    public String toString() {
+        return "(hcsb " + this.width + " " + this.height + " " + this.stageThreshold.length + ")";
+    }
+
+    /**
+     * The cascade bound to one scale and one integral image. Instances only read shared immutable state, so
+     * distinct threads can scan different parts of the same image with their own or a common instance.
+     */
+    public final class Scaled {
+        private final IntegralImage integral;
+        private final int scale;
+        private final int windowWidth;
+        private final int windowHeight;
+        private final double windowArea;
+
+        // Offsets of the window corners and of each feature rectangle corner relative to the window origin
+        private final int windowTopRight;
+        private final int windowBottomLeft;
+        private final int windowBottomRight;
+        private final int[] rectTopLeft;
+        private final int[] rectTopRight;
+        private final int[] rectBottomLeft;
+        private final int[] rectBottomRight;
+
+        // jjil compares (feature << 12) to ((threshold * (stdDev << 8)) >> 6) * area >> 6 on the shrunk image.
+        // A shrunk feature is the full resolution one divided by scale^2, which folds into this single factor.
+        private final double thresholdFactor;
+
+        private Scaled(int scale, IntegralImage integral) {
+            this.integral = integral;
+            this.scale = scale;
+            this.windowWidth = width * scale;
+            this.windowHeight = height * scale;
+            this.windowArea = (double) this.windowWidth * this.windowHeight;
+
+            int stride = integral.getStride();
+            this.windowTopRight = this.windowWidth;
+            this.windowBottomLeft = this.windowHeight * stride;
+            this.windowBottomRight = this.windowBottomLeft + this.windowTopRight;
+
+            int rectCount = rectWeight.length;
+            this.rectTopLeft = new int[rectCount];
+            this.rectTopRight = new int[rectCount];
+            this.rectBottomLeft = new int[rectCount];
+            this.rectBottomRight = new int[rectCount];
+            for (int r = 0; r < rectCount; r++) {
+                if (rectWidth[r] == 0 || rectHeight[r] == 0) {
+                    // Unused rectangle: all corners at the origin sum to 0
+                    continue;
+                }
+                int top = rectTop[r] * scale * stride;
+                int bottom = (rectTop[r] + rectHeight[r]) * scale * stride;
+                int left = rectLeft[r] * scale;
+                int right = (rectLeft[r] + rectWidth[r]) * scale;
+                this.rectTopLeft[r] = top + left;
+                this.rectTopRight[r] = top + right;
+                this.rectBottomLeft[r] = bottom + left;
+                this.rectBottomRight[r] = bottom + right;
+            }
+
+            this.thresholdFactor = (double) width * height * scale * scale / 65536.;
+        }
+
+        public int getScale() {
+            return scale;
+        }
+
+        public int getWindowWidth() {
+            return windowWidth;
+        }
+
+        public int getWindowHeight() {
+            return windowHeight;
+        }
+
+        /**
+         * @param x left of the window in the integral image
+         * @param y top of the window in the integral image
+         * @return true if every stage of the cascade accepts the window
+         */
+        public boolean eval(int x, int y) {
+            int[] sums = this.integral.sums();
+            long[] squares = this.integral.squares();
+            int origin = this.integral.indexOf(x, y);
+
+            int sum = sums[origin + this.windowBottomRight] - sums[origin + this.windowTopRight]
+                    - sums[origin + this.windowBottomLeft] + sums[origin];
+            long sumOfSquares = squares[origin + this.windowBottomRight] - squares[origin + this.windowTopRight]
+                    - squares[origin + this.windowBottomLeft] + squares[origin];
+            double variance = (sumOfSquares - (double) sum * sum / this.windowArea) / this.windowArea;
+            double stdDevFactor = Math.sqrt(Math.max(0., variance)) * this.thresholdFactor;
+
+            for (int stage = 0; stage < stageThreshold.length; stage++) {
+                int stageSum = 0;
+                for (int stump = stageFirstStump[stage]; stump < stageFirstStump[stage + 1]; stump++) {
+                    long feature = 0;
+                    for (int r = stump * RECTS_PER_FEATURE; r < (stump + 1) * RECTS_PER_FEATURE; r++) {
+                        feature += (long) rectWeight[r] * (sums[origin + this.rectBottomRight[r]]
+                                - sums[origin + this.rectTopRight[r]]
+                                - sums[origin + this.rectBottomLeft[r]]
+                                + sums[origin + this.rectTopLeft[r]]);
+                    }
+                    stageSum += feature < stumpThreshold[stump] * stdDevFactor ? stumpBelow[stump] : stumpAbove[stump];
+                }
+                if (stageSum < stageThreshold[stage]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Minimal reader for the profile s-expressions. Tokens are separated by whitespace or commas.
+     */
+    private static final class Parser {
+        private final CharSequence profile;
+        private int position;
+
+        private Parser(CharSequence profile) {
+            this.profile = profile;
+        }
+
+        private void skipSeparators() {
+            while (this.position < this.profile.length()) {
+                char c = this.profile.charAt(this.position);
+                if (c != ',' && !Character.isWhitespace(c)) {
+                    return;
+                }
+                this.position++;
+            }
+        }
+
+        private void expect(String token) throws Error {
+            skipSeparators();
+            if (this.position + token.length() > this.profile.length()
+                    || !token.contentEquals(this.profile.subSequence(this.position, this.position + token.length()))) {
+                throw parseError(token);
+            }
+            this.position += token.length();
+        }
+
+        private int nextInt() throws Error {
+            skipSeparators();
+            int start = this.position;
+            if (this.position < this.profile.length() && this.profile.charAt(this.position) == '-') {
+                this.position++;
+            }
+            while (this.position < this.profile.length() && Character.isDigit(this.profile.charAt(this.position))) {
+                this.position++;
+            }
+            if (this.position == start) {
+                throw parseError("integer");
+            }
+            return Integer.parseInt(this.profile.subSequence(start, this.position).toString());
+        }
+
+        private Error parseError(String expected) {
+            int end = Math.min(this.profile.length(), this.position + 16);
+            return new Error(
+                    Error.PACKAGE.ALGORITHM,
+                    ErrorCodes.PARSE_ERROR,
+                    this.profile.subSequence(this.position, end).toString(),
+                    expected,
+                    Integer.toString(this.position));
+        }
+    }
+
+    /**
+     * Growable int array, used only while parsing.
+     */
+    private static final class IntList {
+        private int[] values = new int[256];
+        private int size;
+
+        private void add(int value) {
+            if (this.size == this.values.length) {
+                int[] grown = new int[this.size * 2];
+                System.arraycopy(this.values, 0, grown, 0, this.size);
+                this.values = grown;
+            }
+            this.values[this.size++] = value;
+        }
+
+        private int size() {
+            return this.size;
+        }
+
+        private int[] toArray() {
+            int[] copy = new int[this.size];
+            System.arraycopy(this.values, 0, copy, 0, this.size);
+            return copy;
+        }
+    }
+}
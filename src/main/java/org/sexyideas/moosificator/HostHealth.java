@@ -0,0 +1,184 @@
+package org.sexyideas.moosificator;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Remembers which source images and hosts failed recently, so requests for them fail right away instead of each
+ * waiting out the fetch timeouts on a fetch thread.
+ * <p/>
+ * A URL that failed to fetch is skipped for a short while. A host whose fetches keep failing gets its circuit opened:
+ * no fetch from it is attempted until the circuit has been open for a while, then a single fetch is let through to try
+ * it, closing the circuit again if it succeeds and reopening it if it fails. Only failures that say something about
+ * the host count towards its circuit: server errors, timeouts and connection errors. A missing, private or oversized
+ * image says nothing about its neighbours, and one set of hotlink protected images mustn't cut off a whole CDN.
+ */
+public final class HostHealth {
+
+    private static final int MAX_FAILED_URLS = 10000;
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Cache<String, Boolean> failedUrls;
+    private final LoadingCache<String, Circuit> circuits;
+    private final AtomicLong rejectedFetches = new AtomicLong();
+
+    /**
+     * @param failureThreshold the failures in a row that open the circuit of a host
+     * @param openMillis how long a circuit stays open before a fetch is tried again
+     * @param failedUrlMillis how long a URL that failed is skipped
+     */
+    public HostHealth(int failureThreshold, long openMillis, long failedUrlMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+        this.failedUrls = CacheBuilder.newBuilder()
+                .maximumSize(MAX_FAILED_URLS)
+                .expireAfterWrite(failedUrlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        this.circuits = CacheBuilder.newBuilder()
+                // Hosts not asked for in a while are forgotten, whatever state they were in
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(new CacheLoader<String, Circuit>() {
+                    @Override
+                    public Circuit load(String host) {
+                        return new Circuit();
+                    }
+                });
+    }
+
+    /**
+     * Tells whether an image should be fetched. Letting a fetch through to a host whose circuit is due for a try
+     * makes it the try: its outcome must be recorded.
+     *
+     * @param url the location of the image
+     * @param key the normalized form of that location
+     * @return false if the image failed recently or its host is failing
+     */
+    public boolean allowFetch(URL url, String key) {
+        if (this.failedUrls.getIfPresent(key) != null || !circuitOf(url).allowFetch()) {
+            this.rejectedFetches.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void recordSuccess(URL url) {
+        circuitOf(url).recordSuccess();
+    }
+
+    /**
+     * @param url the location of the image
+     * @param key the normalized form of that location
+     * @param error why the image couldn't be fetched
+     */
+    public void recordFailure(URL url, String key, IOException error) {
+        this.failedUrls.put(key, Boolean.TRUE);
+        if (isHostFailure(error)) {
+            circuitOf(url).recordFailure();
+        } else if (error instanceof SourceImage.StatusException || error instanceof SourceImage.TooLargeException) {
+            // The host answered
+            circuitOf(url).recordSuccess();
+        }
+    }
+
+    /**
+     * @return the counters and the hosts whose circuit isn't closed, by name
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> failingHosts = new LinkedHashMap<>();
+        for (Map.Entry<String, Circuit> circuit : this.circuits.asMap().entrySet()) {
+            State state = circuit.getValue().getState();
+            if (state != State.CLOSED) {
+                failingHosts.put(circuit.getKey(), state.name().toLowerCase(Locale.ROOT));
+            }
+        }
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("rejectedFetches", this.rejectedFetches.get());
+        stats.put("failedUrls", this.failedUrls.size());
+        stats.put("failingHosts", failingHosts);
+        return stats;
+    }
+
+    private Circuit circuitOf(URL url) {
+        return this.circuits.getUnchecked(url.getHost().toLowerCase(Locale.ROOT));
+    }
+
+    private static boolean isHostFailure(IOException error) {
+        if (error instanceof SourceImage.StatusException) {
+            return ((SourceImage.StatusException) error).getStatus() >= 500;
+        }
+        // Connect and read timeouts, refused or reset connections, unreachable or unknown hosts
+        return error instanceof SocketTimeoutException || error instanceof SocketException
+                || error instanceof UnknownHostException;
+    }
+
+    private enum State {
+        CLOSED, // Fetches go through
+        OPEN, // Fetches are rejected
+        HALF_OPEN // A single fetch is trying the host
+    }
+
+    private final class Circuit {
+        private State state = State.CLOSED;
+        private int failures;
+        private long changedAt;
+
+        private synchronized boolean allowFetch() {
+            long now = System.currentTimeMillis();
+            switch (this.state) {
+                case OPEN:
+                    if (now - this.changedAt < openMillis) {
+                        return false;
+                    }
+                    changeTo(State.HALF_OPEN, now);
+                    return true;
+                case HALF_OPEN:
+                    // A try that never told how it went, its request may have been turned away: try again
+                    if (now - this.changedAt < openMillis) {
+                        return false;
+                    }
+                    this.changedAt = now;
+                    return true;
+                default:
+                    return true;
+            }
+        }
+
+        private synchronized void recordSuccess() {
+            this.failures = 0;
+            if (this.state != State.CLOSED) {
+                changeTo(State.CLOSED, System.currentTimeMillis());
+            }
+        }
+
+        private synchronized void recordFailure() {
+            this.failures++;
+            if (this.state == State.HALF_OPEN || this.state == State.CLOSED && this.failures >= failureThreshold) {
+                changeTo(State.OPEN, System.currentTimeMillis());
+            }
+        }
+
+        private synchronized State getState() {
+            return this.state;
+        }
+
+        private void changeTo(State state, long now) {
+            this.state = state;
+            this.changedAt = now;
+        }
+    }
+}
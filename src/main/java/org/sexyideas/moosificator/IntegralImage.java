@@ -0,0 +1,74 @@
+package org.sexyideas.moosificator;
+
+import jjil.core.Gray8Image;
+
+/**
+ * Summed area table of a {@link Gray8Image} and of its squared pixels. Pixels are shifted from jjil's signed
+ * representation to [0, 255]. Both tables have an extra zero row and column so the sum of any rectangle is
+ * four lookups, which is what lets the Haar cascade be evaluated at any position and scale without
+ * building sub-images.
+ * <p/>
+ * Plain sums are kept in ints: they may wrap around on very large images, but the four-corner difference
+ * of any rectangle that fits in an int (every detection window does) is still exact.
+ */
+public final class IntegralImage {
+
+    private final int width;
+    private final int height;
+    private final int[] sums;
+    private final long[] squares;
+
+    public IntegralImage(Gray8Image image) {
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        int stride = this.width + 1;
+        this.sums = new int[stride * (this.height + 1)];
+        this.squares = new long[stride * (this.height + 1)];
+
+        byte[] data = image.getData();
+        for (int y = 0; y < this.height; y++) {
+            int rowSum = 0;
+            long rowSquares = 0;
+            int source = y * this.width;
+            int above = y * stride + 1;
+            int target = above + stride;
+            for (int x = 0; x < this.width; x++) {
+                int pixel = data[source + x] - Byte.MIN_VALUE;
+                rowSum += pixel;
+                rowSquares += pixel * pixel;
+                this.sums[target + x] = this.sums[above + x] + rowSum;
+                this.squares[target + x] = this.squares[above + x] + rowSquares;
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the distance between two rows of the tables
+     */
+    public int getStride() {
+        return this.width + 1;
+    }
+
+    /**
+     * @return the index in the tables of the top left corner of pixel (x, y)
+     */
+    public int indexOf(int x, int y) {
+        return y * (this.width + 1) + x;
+    }
+
+    int[] sums() {
+        return sums;
+    }
+
+    long[] squares() {
+        return squares;
+    }
+}
@@ -0,0 +1,66 @@
+package org.sexyideas.moosificator;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes JPEGs at a given quality. JPEG has no alpha channel, so translucent images are flattened over white first.
+ * <p/>
+ * Each thread encodes with its own {@link ImageWriter}, reset between images rather than looked up for each one.
+ */
+public final class JpegEncoder {
+
+    private static final ThreadLocal<ImageWriter> WRITERS = new ThreadLocal<ImageWriter>() {
+        @Override
+        protected ImageWriter initialValue() {
+            return ImageIO.getImageWritersByFormatName("jpeg").next();
+        }
+    };
+
+    private final float quality;
+
+    /**
+     * @param quality the quality, from 0 (smallest) to 100 (best)
+     */
+    public JpegEncoder(int quality) {
+        this.quality = Math.max(0, Math.min(100, quality)) / 100f;
+    }
+
+    public void encode(BufferedImage image, OutputStream os) throws IOException {
+        ImageWriter writer = WRITERS.get();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(this.quality);
+
+        try (ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(os)) {
+            writer.setOutput(imageOutputStream);
+            writer.write(null, new IIOImage(opaque(image), null, null), param);
+        } finally {
+            writer.reset();
+        }
+    }
+
+    private static BufferedImage opaque(BufferedImage image) {
+        if (!image.getColorModel().hasAlpha()) {
+            return image;
+        }
+
+        BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = opaque.createGraphics();
+        try {
+            g.drawImage(image, 0, 0, Color.WHITE, null);
+        } finally {
+            g.dispose();
+        }
+        return opaque;
+    }
+}
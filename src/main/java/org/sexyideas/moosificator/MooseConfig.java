@@ -0,0 +1,345 @@
+package org.sexyideas.moosificator;
+
+import java.util.Locale;
+import java.util.logging.Level;
+
+import static java.lang.String.format;
+
+/**
+ * Tuning switches, read from the environment like the rest of our configuration (see <code>.env</code> for local
+ * mode). Every setting has a default so nothing needs to be set for the service to run.
+ */
+public final class MooseConfig {
+
+    public enum DetectionMode {
+        SERIAL, // Detect faces on the request thread
+        PARALLEL // Split scales and bands of rows across the shared detection pool
+    }
+
+    private static final DetectionMode DETECTION_MODE =
+            getEnum("MOOSE_DETECTION_MODE", DetectionMode.class, DetectionMode.SERIAL);
+    private static final int DETECTION_THREADS =
+            getInt("MOOSE_DETECTION_THREADS", Runtime.getRuntime().availableProcessors());
+    private static final int DETECTION_RESOLUTION = getInt("MOOSE_DETECTION_RESOLUTION", 640);
+    private static final boolean SKIN_PREFILTER = Boolean.parseBoolean(getString("MOOSE_SKIN_PREFILTER", "true"));
+    private static final int FETCH_CONNECT_TIMEOUT_MILLIS = getInt("MOOSE_FETCH_CONNECT_TIMEOUT_MS", 5000);
+    private static final int FETCH_READ_TIMEOUT_MILLIS = getInt("MOOSE_FETCH_READ_TIMEOUT_MS", 10000);
+    private static final int FETCH_MAX_BYTES = getInt("MOOSE_FETCH_MAX_BYTES", 10 * 1024 * 1024);
+    private static final int FAILED_URL_TTL_MILLIS = getInt("MOOSE_FAILED_URL_TTL_MS", 60000);
+    private static final int HOST_FAILURE_THRESHOLD = getInt("MOOSE_HOST_FAILURE_THRESHOLD", 5);
+    private static final int HOST_OPEN_MILLIS = getInt("MOOSE_HOST_OPEN_MS", 30000);
+    private static final int MAX_SOURCE_PIXELS = getInt("MOOSE_MAX_SOURCE_PIXELS", 64 * 1000 * 1000);
+    private static final int FETCH_THREADS = getInt("MOOSE_FETCH_THREADS", 32);
+    private static final int FETCH_QUEUE_SIZE = getInt("MOOSE_FETCH_QUEUE_SIZE", 64);
+    private static final int COMPUTE_THREADS =
+            getInt("MOOSE_COMPUTE_THREADS", Runtime.getRuntime().availableProcessors());
+    private static final int COMPUTE_QUEUE_SIZE = getInt("MOOSE_COMPUTE_QUEUE_SIZE", 16);
+    private static final int GIF_FRAME_THREADS =
+            getInt("MOOSE_GIF_FRAME_THREADS", Runtime.getRuntime().availableProcessors());
+    private static final int GIF_FRAMES_IN_FLIGHT = getInt("MOOSE_GIF_FRAMES_IN_FLIGHT", 2 * GIF_FRAME_THREADS);
+    private static final int TRACKING_KEYFRAME_INTERVAL = getInt("MOOSE_GIF_KEYFRAME_INTERVAL", 10);
+    private static final int TRACKING_SCENE_CHANGE = getInt("MOOSE_GIF_SCENE_CHANGE", 12);
+    private static final int PNG_COMPRESSION_LEVEL = getInt("MOOSE_PNG_COMPRESSION_LEVEL", 1);
+    private static final PngEncoder.Filter PNG_FILTER =
+            getEnum("MOOSE_PNG_FILTER", PngEncoder.Filter.class, PngEncoder.Filter.UP);
+    private static final boolean PNG_PALETTE = Boolean.parseBoolean(getString("MOOSE_PNG_PALETTE", "true"));
+    private static final int JPEG_QUALITY = getInt("MOOSE_JPEG_QUALITY", 85);
+    private static final int BATCH_MAX_ITEMS = getInt("MOOSE_BATCH_MAX_ITEMS", 100);
+    private static final int BATCH_PARALLELISM = getInt("MOOSE_BATCH_PARALLELISM", 4);
+    private static final int BATCH_THREADS = getInt("MOOSE_BATCH_THREADS", 4);
+    private static final int BATCH_QUEUE_SIZE = getInt("MOOSE_BATCH_QUEUE_SIZE", 8);
+    private static final int IMAGE_CACHE_MAX_BYTES = getInt("MOOSE_IMAGE_CACHE_MAX_BYTES", 64 * 1024 * 1024);
+    private static final int NO_FACE_CACHE_MAX_BYTES = getInt("MOOSE_NO_FACE_CACHE_MAX_BYTES", 16 * 1024 * 1024);
+    private static final int GIF_CACHE_MAX_BYTES = getInt("MOOSE_GIF_CACHE_MAX_BYTES", 64 * 1024 * 1024);
+    private static final int SPRITE_CACHE_MAX_BYTES = getInt("MOOSE_SPRITE_CACHE_MAX_BYTES", 64 * 1024 * 1024);
+    private static final int OVERLAY_CACHE_SIZE = getInt("MOOSE_OVERLAY_CACHE_SIZE", 32);
+    private static final int FACE_CACHE_SIZE = getInt("MOOSE_FACE_CACHE_SIZE", 10000);
+    private static final String DISK_CACHE_DIRECTORY = getString("MOOSE_DISK_CACHE_DIR",
+            System.getProperty("java.io.tmpdir") + "/moosificator-cache");
+    private static final int DISK_CACHE_MAX_BYTES = getInt("MOOSE_DISK_CACHE_MAX_BYTES", 256 * 1024 * 1024);
+    private static final int CACHE_MAX_AGE_SECONDS = getInt("MOOSE_CACHE_MAX_AGE_SECONDS", 7 * 24 * 60 * 60);
+    private static final int REQUEST_TIMEOUT_MILLIS = getInt("MOOSE_REQUEST_TIMEOUT_MS", 30000);
+
+    private MooseConfig() {
+    }
+
+    public static DetectionMode getDetectionMode() {
+        return DETECTION_MODE;
+    }
+
+    /**
+     * @return the parallelism of the detection pool used in {@link DetectionMode#PARALLEL} mode
+     */
+    public static int getDetectionThreads() {
+        return DETECTION_THREADS;
+    }
+
+    /**
+     * @return the long side, in pixels, of the grayscale proxy faces are detected on, 0 to detect at full resolution
+     */
+    public static int getDetectionResolution() {
+        return DETECTION_RESOLUTION;
+    }
+
+    /**
+     * @return true to skip the face search on still images in color without any skin tone, see {@link SkinTone}
+     */
+    public static boolean isSkinPrefilter() {
+        return SKIN_PREFILTER;
+    }
+
+    public static int getFetchConnectTimeoutMillis() {
+        return FETCH_CONNECT_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * @return the longest wait for data from a source image host before giving up
+     */
+    public static int getFetchReadTimeoutMillis() {
+        return FETCH_READ_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * @return the size above which a source image is rejected
+     */
+    public static int getFetchMaxBytes() {
+        return FETCH_MAX_BYTES;
+    }
+
+    /**
+     * @return how long a source image that couldn't be fetched is answered with an error without trying again
+     */
+    public static int getFailedUrlTtlMillis() {
+        return FAILED_URL_TTL_MILLIS;
+    }
+
+    /**
+     * @return the failed fetches in a row after which no source image is fetched from a host for a while
+     */
+    public static int getHostFailureThreshold() {
+        return HOST_FAILURE_THRESHOLD;
+    }
+
+    /**
+     * @return how long a failing host is left alone before a fetch from it is tried again
+     */
+    public static int getHostOpenMillis() {
+        return HOST_OPEN_MILLIS;
+    }
+
+    /**
+     * @return the pixels above which a source image is rejected without being decoded, whatever its size in bytes
+     */
+    public static int getMaxSourcePixels() {
+        return MAX_SOURCE_PIXELS;
+    }
+
+    /**
+     * @return the number of threads downloading source images
+     */
+    public static int getFetchThreads() {
+        return FETCH_THREADS;
+    }
+
+    /**
+     * @return the number of downloads that can wait for a fetch thread before requests are turned away
+     */
+    public static int getFetchQueueSize() {
+        return FETCH_QUEUE_SIZE;
+    }
+
+    /**
+     * @return the number of threads decoding, moosificating and encoding images
+     */
+    public static int getComputeThreads() {
+        return COMPUTE_THREADS;
+    }
+
+    /**
+     * @return the number of fetched images that can wait for a compute thread before requests are turned away
+     */
+    public static int getComputeQueueSize() {
+        return COMPUTE_QUEUE_SIZE;
+    }
+
+    /**
+     * @return how long a request can be suspended before it is answered with a 503
+     */
+    public static int getRequestTimeoutMillis() {
+        return REQUEST_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * @return the number of threads moosificating the frames of animated GIFs
+     */
+    public static int getGifFrameThreads() {
+        return GIF_FRAME_THREADS;
+    }
+
+    /**
+     * @return the number of frames of a single animated GIF decoded but not yet encoded at any time
+     */
+    public static int getGifFramesInFlight() {
+        return GIF_FRAMES_IN_FLIGHT;
+    }
+
+    /**
+     * @return the frames of an animated GIF between two full face detections, faces are tracked from the previous
+     * frame in between. 1 detects faces on every frame.
+     */
+    public static int getTrackingKeyframeInterval() {
+        return TRACKING_KEYFRAME_INTERVAL;
+    }
+
+    /**
+     * @return the mean difference of gray levels (0-255) between two frames of an animated GIF past which faces are
+     * detected again rather than tracked
+     */
+    public static int getTrackingSceneChange() {
+        return TRACKING_SCENE_CHANGE;
+    }
+
+    /**
+     * @return the deflate level of moosificated PNGs, from 0 (fastest) to 9 (smallest)
+     */
+    public static int getPngCompressionLevel() {
+        return PNG_COMPRESSION_LEVEL;
+    }
+
+    public static PngEncoder.Filter getPngFilter() {
+        return PNG_FILTER;
+    }
+
+    /**
+     * @return true to write moosificated PNGs of at most 256 colors with a palette
+     */
+    public static boolean isPngPalette() {
+        return PNG_PALETTE;
+    }
+
+    /**
+     * @return the quality of moosificated JPEGs, from 0 (smallest) to 100 (best)
+     */
+    public static int getJpegQuality() {
+        return JPEG_QUALITY;
+    }
+
+    public static int getBatchMaxItems() {
+        return BATCH_MAX_ITEMS;
+    }
+
+    /**
+     * @return the items of a batch being moosificated at once
+     */
+    public static int getBatchParallelism() {
+        return BATCH_PARALLELISM;
+    }
+
+    /**
+     * @return the number of threads writing the zips of batches as their items complete
+     */
+    public static int getBatchThreads() {
+        return BATCH_THREADS;
+    }
+
+    /**
+     * @return the number of batches that can wait for a batch thread before they are turned away
+     */
+    public static int getBatchQueueSize() {
+        return BATCH_QUEUE_SIZE;
+    }
+
+    /**
+     * @return the total size of the encoded still images kept in memory
+     */
+    public static int getImageCacheMaxBytes() {
+        return IMAGE_CACHE_MAX_BYTES;
+    }
+
+    /**
+     * @return the total size of the encoded images of sources without faces kept in memory
+     */
+    public static int getNoFaceCacheMaxBytes() {
+        return NO_FACE_CACHE_MAX_BYTES;
+    }
+
+    /**
+     * @return the total size of the moosificated animated GIFs kept in memory
+     */
+    public static int getGifCacheMaxBytes() {
+        return GIF_CACHE_MAX_BYTES;
+    }
+
+    /**
+     * @return the total size of the scaled antlers, named moose and re-moose faces kept in memory
+     */
+    public static int getSpriteCacheMaxBytes() {
+        return SPRITE_CACHE_MAX_BYTES;
+    }
+
+    /**
+     * @return the most faces cut out of re-moose overlay images kept in memory
+     */
+    public static int getOverlayCacheSize() {
+        return OVERLAY_CACHE_SIZE;
+    }
+
+    /**
+     * @return the most face detections kept in memory, apart from the moosificated images
+     */
+    public static int getFaceCacheSize() {
+        return FACE_CACHE_SIZE;
+    }
+
+    public static String getDiskCacheDirectory() {
+        return DISK_CACHE_DIRECTORY;
+    }
+
+    /**
+     * @return the space results can use on disk, 0 to disable the disk cache
+     */
+    public static int getDiskCacheMaxBytes() {
+        return DISK_CACHE_MAX_BYTES;
+    }
+
+    /**
+     * @return how long clients and proxies may reuse a moosification without asking again
+     */
+    public static int getCacheMaxAgeSeconds() {
+        return CACHE_MAX_AGE_SECONDS;
+    }
+
+    private static String getString(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    private static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            MooseLogger.getLogger().log(Level.WARNING,
+                    format("Invalid value [%s] for %s, using [%d]", value, name, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    private static <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            MooseLogger.getLogger().log(Level.WARNING,
+                    format("Invalid value [%s] for %s, using [%s]", value, name,
+                            defaultValue.name().toLowerCase(Locale.ROOT)));
+            return defaultValue;
+        }
+    }
+}
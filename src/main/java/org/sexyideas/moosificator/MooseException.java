@@ -12,7 +12,8 @@ public class MooseException extends Exception {
         MISSING_MOOSE_NAME("Missing moose name"),
         INVALID_MOOSE_NAME("Invalid moose name"),
         MISSING_RE_MOOSE_URL("Missing re-moose URL"),
-        INVALID_RE_MOOSE_URL("Invalid re-moose URL");
+        INVALID_RE_MOOSE_URL("Invalid re-moose URL"),
+        INVALID_OUTPUT_FORMAT("Invalid output format");
 
         private String message;
 
@@ -10,25 +10,22 @@ import java.awt.image.BufferedImage;
  */
 public class MooseImage {
 
-    private BufferedImage image;
+    private Sprite sprite;
     private float headLeftOffset;
     private float headTopOffset;
     private float magnifyingFactor;
-    private float mooseProportionRatio;
 
     public MooseImage(BufferedImage image, float headLeftOffset, float headTopOffset, float headHeight) {
-        this.image = image;
+        this.sprite = new Sprite(image);
         this.headLeftOffset = headLeftOffset;
         this.headTopOffset = headTopOffset;
         this.magnifyingFactor = (float) image.getHeight() / headHeight;
-        this.mooseProportionRatio = (float) image.getWidth() / (float) image.getHeight();
     }
 
     public void drawImage(Graphics g, Rect rectangle) {
-        float effectiveHeight = rectangle.getHeight() * this.magnifyingFactor;
-        float effectiveWidth = effectiveHeight * this.mooseProportionRatio;
-        float effectiveTop = rectangle.getTop() - this.headTopOffset * effectiveHeight / this.image.getHeight();
-        float effectiveLeft = rectangle.getLeft() - this.headLeftOffset * effectiveWidth / this.image.getWidth();
-        g.drawImage(this.image, (int) effectiveLeft, (int) effectiveTop, (int) effectiveWidth, (int) effectiveHeight, null);
+        BufferedImage scaled = this.sprite.scaledToHeight((int) (rectangle.getHeight() * this.magnifyingFactor));
+        float effectiveTop = rectangle.getTop() - this.headTopOffset * scaled.getHeight() / this.sprite.getHeight();
+        float effectiveLeft = rectangle.getLeft() - this.headLeftOffset * scaled.getWidth() / this.sprite.getWidth();
+        g.drawImage(scaled, (int) effectiveLeft, (int) effectiveTop, null);
     }
 }
@@ -34,7 +34,7 @@ public final class MooseLogger {
         }
     }
 
-    public static void logEventForNewMooseSource(URL sourceImage) {
+    public static void logEventForNewMooseSource(String sourceImage) {
         try {
             Map<String, Object> event = new HashMap<String, Object>();
             event.put("sourceImage", sourceImage);
@@ -55,13 +55,13 @@ public final class MooseLogger {
             }
 
             Map<String, Object> event = new HashMap<String, Object>();
-            event.put("sourceImage", mooseRequest.getOriginalImageUrl());
+            event.put("sourceImage", mooseRequest.getSource());
             event.put("error", errorMessage);
             KeenClient.client().addEvent(ERROR_MOOSIFICATING_EVENT, event);
         } catch (KeenException e) {
             LOGGER.log(Level.WARNING,
                     format("Error storing event for retrieval of event for source image [%s]",
-                            mooseRequest.getOriginalImageUrl()), e);
+                            mooseRequest.getSource()), e);
         }
     }
 
@@ -2,8 +2,16 @@ package org.sexyideas.moosificator;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
 /**
  * @author spencer.firestone
  */
@@ -13,15 +21,31 @@ public final class MooseRequest {
         ANTLER, // Add antlers to a face
         MOOSE, // Overlay a moose on a face
         NAMED, // Overlay a different, named moose on a face
-        RE_MOOSE // Extract a face from an image, overlay it on a face, and antlerificate it
+        RE_MOOSE, // Extract a face from an image, overlay it on a face, and antlerificate it
+        FACES // Only find the faces, without moosificating anything
+    }
+
+    public enum OutputFormat {
+        PNG, // Lossless, the default
+        JPEG // Much smaller for photos
     }
 
+    private static final Comparator<String> PARAMETER_NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String left, String right) {
+            return parameterName(left).compareTo(parameterName(right));
+        }
+    };
+
     private URL originalImageUrl;
+    private String originalImageKey;
     private boolean debug;
     private boolean debugOnly;
     private URL overlayImageUrl;
+    private String overlayImageKey;
     private String overlayImageName;
     private RequestType requestType;
+    private OutputFormat outputFormat;
 
     private MooseRequest() {
     }
@@ -30,14 +54,42 @@ public final class MooseRequest {
         return new MooseRequestBuilder();
     }
 
+    /**
+     * @return the URL of the image to moosificate, null if it was uploaded
+     */
     public URL getOriginalImageUrl() {
         return originalImageUrl;
     }
 
+    /**
+     * @return the normalized form of the image URL, or the content hash of an uploaded image, equal for equal images
+     */
+    public String getOriginalImageKey() {
+        return originalImageKey;
+    }
+
+    public boolean isUploaded() {
+        return this.originalImageUrl == null;
+    }
+
+    /**
+     * @return where the image to moosificate comes from, for logging: its URL, or its content hash if it was uploaded
+     */
+    public String getSource() {
+        return this.originalImageUrl == null ? this.originalImageKey : this.originalImageUrl.toExternalForm();
+    }
+
     public URL getOverlayImageUrl() {
         return overlayImageUrl;
     }
 
+    /**
+     * @return the normalized form of the overlay image URL, equal for equal URLs
+     */
+    public String getOverlayImageKey() {
+        return overlayImageKey;
+    }
+
     public String getOverlayImageName() {
         return overlayImageName;
     }
@@ -46,6 +98,34 @@ public final class MooseRequest {
         return requestType;
     }
 
+    /**
+     * @return the format still images are encoded in, animated GIFs stay GIFs
+     */
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * @return the request an animated GIF is moosificated, cached and tagged under: animations come out the same
+     * whatever output format was asked for, so it has the default one
+     */
+    public MooseRequest forAnimation() {
+        if (this.outputFormat == OutputFormat.PNG) {
+            return this;
+        }
+        MooseRequest animationRequest = new MooseRequest();
+        animationRequest.originalImageUrl = this.originalImageUrl;
+        animationRequest.originalImageKey = this.originalImageKey;
+        animationRequest.debug = this.debug;
+        animationRequest.debugOnly = this.debugOnly;
+        animationRequest.overlayImageUrl = this.overlayImageUrl;
+        animationRequest.overlayImageKey = this.overlayImageKey;
+        animationRequest.overlayImageName = this.overlayImageName;
+        animationRequest.requestType = this.requestType;
+        animationRequest.outputFormat = OutputFormat.PNG;
+        return animationRequest;
+    }
+
     public boolean isDebug() {
         return debug;
     }
@@ -54,6 +134,14 @@ public final class MooseRequest {
         return debugOnly;
     }
 
+    /**
+     * @return the normalized form of the request, equal for equal requests
+     */
+    public String getKey() {
+        return Joiner.on('|').useForNull("").join(this.requestType, this.originalImageKey, this.debug, this.debugOnly,
+                this.overlayImageKey, this.overlayImageName, this.outputFormat);
+    }
+
     public boolean hasOverlayImageFromUrl() {
         return this.overlayImageUrl != null;
     }
@@ -74,22 +162,62 @@ public final class MooseRequest {
         if (obj == this) {
             return true;
         }
+        // Requests are compared on their normalized URLs: URL.equals resolves host names and is sensitive to the
+        // order of query parameters
         MooseRequest rhs = (MooseRequest) obj;
-        return Objects.equals(this.originalImageUrl, rhs.originalImageUrl)
+        return this.requestType == rhs.requestType
+                && Objects.equals(this.originalImageKey, rhs.originalImageKey)
                 && this.debug == rhs.debug
                 && this.debugOnly == rhs.debugOnly
-                && Objects.equals(this.overlayImageUrl, rhs.overlayImageUrl)
-                && Objects.equals(this.overlayImageName, rhs.overlayImageName);
+                && Objects.equals(this.overlayImageKey, rhs.overlayImageKey)
+                && Objects.equals(this.overlayImageName, rhs.overlayImageName)
+                && this.outputFormat == rhs.outputFormat;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(this.originalImageUrl, this.debug, this.debugOnly, this.overlayImageUrl, this.overlayImageName);
+        return Objects.hash(this.requestType, this.originalImageKey, this.debug, this.debugOnly, this.overlayImageKey,
+                this.overlayImageName, this.outputFormat);
+    }
+
+    /**
+     * Canonical form of a URL, used to tell whether two requests are for the same image: scheme and host in lower
+     * case, no default port, no fragment and query parameters sorted by name (parameters with the same name keep
+     * their order).
+     */
+    static String normalize(URL url) {
+        StringBuilder normalized = new StringBuilder()
+                .append(url.getProtocol().toLowerCase(Locale.ROOT))
+                .append("://");
+        if (url.getUserInfo() != null) {
+            normalized.append(url.getUserInfo()).append('@');
+        }
+        normalized.append(url.getHost().toLowerCase(Locale.ROOT));
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            normalized.append(':').append(url.getPort());
+        }
+        normalized.append(url.getPath().isEmpty() ? "/" : url.getPath());
+
+        if (url.getQuery() != null) {
+            List<String> parameters = Lists.newArrayList(Splitter.on('&').omitEmptyStrings().split(url.getQuery()));
+            if (!parameters.isEmpty()) {
+                Collections.sort(parameters, PARAMETER_NAME_ORDER);
+                Joiner.on('&').appendTo(normalized.append('?'), parameters);
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static String parameterName(String parameter) {
+        int equals = parameter.indexOf('=');
+        return equals == -1 ? parameter : parameter.substring(0, equals);
     }
 
     public static class MooseRequestBuilder {
         private String originalImageUrlString;
+        private String uploadedImageHash;
         private String overlayImageUrlString;
+        private String outputFormatString;
 
         private MooseRequest mooseRequest = new MooseRequest();
 
@@ -98,11 +226,26 @@ public final class MooseRequest {
             return this;
         }
 
+        public RequestType getRequestType() {
+            return this.mooseRequest.requestType;
+        }
+
         public MooseRequestBuilder withOriginalImageUrl(String url) {
             this.originalImageUrlString = url;
             return this;
         }
 
+        /**
+         * Asks for an image uploaded with the request rather than fetched from a URL. Requests are compared on the
+         * content hash of that image, so the image itself is kept out of the request.
+         *
+         * @param contentHash the content hash of the image, see {@link SourceImage#getContentHash()}
+         */
+        public MooseRequestBuilder withUploadedImage(String contentHash) {
+            this.uploadedImageHash = contentHash;
+            return this;
+        }
+
         public MooseRequestBuilder withDebug(String debug) {
             this.mooseRequest.debug = debug != null &&
                     ("only".equalsIgnoreCase(debug) ||"true".equalsIgnoreCase(debug) || "y".equalsIgnoreCase(debug));
@@ -121,20 +264,42 @@ public final class MooseRequest {
             return this;
         }
 
+        /**
+         * @param outputFormat <code>png</code>, <code>jpeg</code> or <code>jpg</code>, PNG if null
+         */
+        public MooseRequestBuilder withOutputFormat(String outputFormat) {
+            this.outputFormatString = outputFormat;
+            return this;
+        }
+
         public MooseRequest build() throws MooseException {
             if (this.mooseRequest.requestType == null) {
                 throw new MooseException(MooseException.MooseExceptionType.MISSING_REQUEST_TYPE);
             }
 
-            if (this.originalImageUrlString == null) {
+            if (this.uploadedImageHash != null) {
+                this.mooseRequest.originalImageKey = "upload:" + this.uploadedImageHash;
+            } else if (this.originalImageUrlString == null) {
                 throw new MooseException(MooseException.MooseExceptionType.MISSING_SOURCE_URL);
+            } else {
+                try {
+                    this.mooseRequest.originalImageUrl = new URL(originalImageUrlString);
+                    if (!SourceImage.isFetchable(this.mooseRequest.originalImageUrl)) {
+                        throw new MooseException(MooseException.MooseExceptionType.INVALID_SOURCE_URL);
+                    }
+                    this.mooseRequest.originalImageKey = normalize(this.mooseRequest.originalImageUrl);
+                    MooseLogger.logEventForMooseRetrieval(this.mooseRequest.originalImageUrl);
+                } catch (MalformedURLException e) {
+                    throw new MooseException(MooseException.MooseExceptionType.INVALID_SOURCE_URL);
+                }
             }
 
-            try {
-                this.mooseRequest.originalImageUrl = new URL(originalImageUrlString);
-                MooseLogger.logEventForMooseRetrieval(this.mooseRequest.originalImageUrl);
-            } catch (MalformedURLException e) {
-                throw new MooseException(MooseException.MooseExceptionType.INVALID_SOURCE_URL);
+            if (this.outputFormatString == null || "png".equalsIgnoreCase(this.outputFormatString)) {
+                this.mooseRequest.outputFormat = OutputFormat.PNG;
+            } else if ("jpeg".equalsIgnoreCase(this.outputFormatString) || "jpg".equalsIgnoreCase(this.outputFormatString)) {
+                this.mooseRequest.outputFormat = OutputFormat.JPEG;
+            } else {
+                throw new MooseException(MooseException.MooseExceptionType.INVALID_OUTPUT_FORMAT);
             }
 
             switch(mooseRequest.requestType) {
@@ -144,17 +309,24 @@ public final class MooseRequest {
                 case MOOSE:
                     // No other validations
                     break;
+                case FACES:
+                    // No other validations
+                    break;
                 case NAMED:
                     if (mooseRequest.overlayImageName == null) {
                         throw new MooseException(MooseException.MooseExceptionType.MISSING_MOOSE_NAME);
                     }
                     break;
                 case RE_MOOSE:
-                    if (mooseRequest.getOverlayImageUrl() == null) {
+                    if (this.overlayImageUrlString == null) {
                         throw new MooseException(MooseException.MooseExceptionType.MISSING_RE_MOOSE_URL);
                     }
                     try {
                         this.mooseRequest.overlayImageUrl = new URL(this.overlayImageUrlString);
+                        if (!SourceImage.isFetchable(this.mooseRequest.overlayImageUrl)) {
+                            throw new MooseException(MooseException.MooseExceptionType.INVALID_RE_MOOSE_URL);
+                        }
+                        this.mooseRequest.overlayImageKey = normalize(this.mooseRequest.overlayImageUrl);
                         MooseLogger.logEventForMooseRetrieval(this.mooseRequest.overlayImageUrl);
                     } catch (MalformedURLException e) {
                         throw new MooseException(MooseException.MooseExceptionType.INVALID_RE_MOOSE_URL);
@@ -2,54 +2,97 @@ package org.sexyideas.moosificator;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.WritableRaster;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.inject.Singleton;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.Ordering;
-import com.sun.imageio.plugins.gif.GIFImageReader;
-import com.sun.imageio.plugins.gif.GIFImageReaderSpi;
-import com.sun.imageio.plugins.gif.GIFImageWriter;
-import com.sun.imageio.plugins.gif.GIFImageWriterSpi;
-import jjil.algorithm.RgbAvgGray;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import jjil.core.Rect;
-import jjil.core.RgbImage;
-import jjil.j2se.RgbImageJ2se;
+import org.glassfish.jersey.media.multipart.FormDataParam;
 
 import static java.lang.String.format;
 
@@ -59,38 +102,76 @@ import static java.lang.String.format;
  * @author alexandre.normand
  */
 @Singleton
-@Produces("image/png")
+@Produces({MooseResult.PNG, MooseResult.JPEG, MooseResult.GIF})
 @Path("/")
 public class MooseResource {
 
     private static final int MAX_IMAGE_SIZE_IN_PIXELS = 2073600;
     private static final String DEFAULT_MOOSE_NAME = "moose";
+    private static final String BATCH_MEDIA_TYPE = "application/zip";
+    // PNG first: it is what clients accepting any image get
+    private static final List<Variant> OUTPUT_VARIANTS = Variant.mediaTypes(
+            MediaType.valueOf(MooseResult.PNG), MediaType.valueOf(MooseResult.JPEG)).build();
+    // Bump whenever a change to the code changes what moosifications look like
+    private static final int RENDERING_VERSION = 4;
 
     private BufferedImage noFaceFoundExceptionOverlay;
     private BufferedImage unrecognizedMooseImage;
     private BufferedImage badUrlExceptionImage;
     private BufferedImage serverErrorMoose;
-    private BufferedImage leftAntler;
-    private BufferedImage rightAntler;
+    private Sprite leftAntler;
+    private Sprite rightAntler;
     private HashMap<String, MooseImage> namedMooseOverlays = new HashMap<>();
-    private LoadingCache<MooseRequest, Optional<BufferedImage>> imageCache;
-    private LoadingCache<MooseRequest, Optional<byte[]>> gifCache;
+    private HaarCascade faceCascade;
+    private ForkJoinPool detectionPool;
+    private final ExecutorService fetchExecutor = newBoundedExecutor("moose-fetch-%d",
+            MooseConfig.getFetchThreads(), MooseConfig.getFetchQueueSize());
+    private final ExecutorService computeExecutor = newBoundedExecutor("moose-compute-%d",
+            MooseConfig.getComputeThreads(), MooseConfig.getComputeQueueSize());
+    // Batches wait on their items for as long as they take, away from the container threads
+    private final ExecutorService batchExecutor = newBoundedExecutor("moose-batch-%d",
+            MooseConfig.getBatchThreads(), MooseConfig.getBatchQueueSize());
+    // Frames never wait behind whole requests in the compute queue, and their number is bounded per animation
+    private final ExecutorService frameExecutor = Executors.newFixedThreadPool(MooseConfig.getGifFrameThreads(),
+            new ThreadFactoryBuilder().setNameFormat("moose-frame-%d").setDaemon(true).build());
+    private final PngEncoder pngEncoder = new PngEncoder(MooseConfig.getPngCompressionLevel(),
+            MooseConfig.getPngFilter(), MooseConfig.isPngPalette());
+    private final JpegEncoder jpegEncoder = new JpegEncoder(MooseConfig.getJpegQuality());
+    private Cache<MooseRequest, Optional<MooseResult>> imageCache;
+    private GifCache gifCache;
+    private HostHealth hostHealth;
+    private Cache<MooseRequest, Optional<MooseResult>> faceCache;
+    private Cache<String, MooseResult> noFaceCache;
+    private Cache<String, MooseImage> overlayFaces;
+    private DiskCache diskCache;
+    private String version;
+    private final ConcurrentMap<MooseRequest, ListenableFuture<Optional<MooseResult>>> inFlightMoosifications =
+            new ConcurrentHashMap<>();
     private float noFaceOverlayRatio;
+    private volatile boolean initialized;
 
     private static Pattern PNG_PATTERN = Pattern.compile("^(\\w+)-(\\d+)-(\\d+)-(\\d+)\\.png$");
 
     public void initializeIfRequired() {
-        // This is an imperfect solution but it should be fine. If multiple requests come in at the same
-        // time and there's a race condition, we'll just have wasted a few extra resources for those requests.
-        if (this.namedMooseOverlays.isEmpty()) {
+        // Only locked until the first request is done initializing, the flag is set once every field is
+        if (!this.initialized) {
+            initialize();
+        }
+    }
+
+    private synchronized void initialize() {
+        // Exactly once: the disk cache can't be opened twice
+        if (!this.initialized) {
             try {
-                this.leftAntler = ImageIO.read(MoosificatorApp.class.getResourceAsStream("/moose/LeftAntler.png"));
-                this.rightAntler = ImageIO.read(MoosificatorApp.class.getResourceAsStream("/moose/RightAntler.png"));
+                this.leftAntler = new Sprite(ImageIO.read(MoosificatorApp.class.getResourceAsStream("/moose/LeftAntler.png")));
+                this.rightAntler = new Sprite(ImageIO.read(MoosificatorApp.class.getResourceAsStream("/moose/RightAntler.png")));
                 this.unrecognizedMooseImage = ImageIO.read(MoosificatorApp.class.getResourceAsStream("/moose/UnrecognizedMoose.png"));
                 this.noFaceFoundExceptionOverlay = ImageIO.read(MoosificatorApp.class.getResourceAsStream("/moose/NoFaceFoundException.png"));
                 this.badUrlExceptionImage = ImageIO.read(MoosificatorApp.class.getResourceAsStream("/moose/BadUrlException.png"));
                 this.serverErrorMoose = ImageIO.read(MoosificatorApp.class.getResourceAsStream("/moose/ServerErrorMoose.png"));
                 this.noFaceOverlayRatio = (float) this.noFaceFoundExceptionOverlay.getWidth() / (float) this.noFaceFoundExceptionOverlay.getHeight();
+                this.faceCascade = HaarCascade.fromStream(MoosificatorApp.class.getResourceAsStream(HaarCascade.DEFAULT_PROFILE));
+                this.version = versionOfResources();
 
                 String dir = MoosificatorApp.class.getResource("/moose/named/").getPath();
                 try (DirectoryStream<java.nio.file.Path> directoryStream = Files.newDirectoryStream(Paths.get(dir))) {
@@ -106,219 +187,1191 @@ public class MooseResource {
                     }
                 }
 
-            } catch (IOException e) {
+            } catch (IOException | jjil.core.Error e) {
                 throw Throwables.propagate(e);
             }
 
-            this.imageCache = CacheBuilder.<MooseRequest, Optional<BufferedImage>>newBuilder()
-                    .maximumSize(20)
+            if (MooseConfig.getDetectionMode() == MooseConfig.DetectionMode.PARALLEL) {
+                this.detectionPool = new ForkJoinPool(MooseConfig.getDetectionThreads());
+            }
+
+            // Encoded results are bounded by their size, failures only weigh their entry
+            this.imageCache = CacheBuilder.newBuilder()
+                    .maximumWeight(MooseConfig.getImageCacheMaxBytes())
+                    .weigher(new Weigher<MooseRequest, Optional<MooseResult>>() {
+                        @Override
+                        public int weigh(MooseRequest mooseRequest, Optional<MooseResult> result) {
+                            return result.isPresent() ? result.get().getSize() : 1;
+                        }
+                    })
                     .expireAfterWrite(1, TimeUnit.DAYS)
-                    .build(new MoosificatorCacheLoader());
+                    .build();
+
+            this.gifCache = new GifCache(MooseConfig.getGifCacheMaxBytes());
+            this.hostHealth = new HostHealth(MooseConfig.getHostFailureThreshold(), MooseConfig.getHostOpenMillis(),
+                    MooseConfig.getFailedUrlTtlMillis());
 
-            this.gifCache = CacheBuilder.<MooseRequest, Optional<BufferedImage>>newBuilder()
-                    .maximumSize(5)
+            // Still images without faces all come out the same whatever moosification was asked for
+            this.noFaceCache = CacheBuilder.newBuilder()
+                    .maximumWeight(MooseConfig.getNoFaceCacheMaxBytes())
+                    .weigher(new Weigher<String, MooseResult>() {
+                        @Override
+                        public int weigh(String key, MooseResult result) {
+                            return result.getSize();
+                        }
+                    })
                     .expireAfterWrite(1, TimeUnit.DAYS)
-                    .build(new MoosificatorGifCacheLoader());
+                    .build();
+
+            // Re-moose faces are cut out once per overlay URL and drawn on every image asking for them
+            this.overlayFaces = CacheBuilder.newBuilder()
+                    .maximumSize(MooseConfig.getOverlayCacheSize())
+                    .expireAfterAccess(1, TimeUnit.DAYS)
+                    .build();
+
+            // Detections weigh a few hundred bytes, they aren't worth evicting images for
+            this.faceCache = CacheBuilder.newBuilder()
+                    .maximumSize(MooseConfig.getFaceCacheSize())
+                    .expireAfterWrite(1, TimeUnit.DAYS)
+                    .build();
+
+            if (MooseConfig.getDiskCacheMaxBytes() > 0) {
+                try {
+                    this.diskCache = DiskCache.open(Paths.get(MooseConfig.getDiskCacheDirectory()),
+                            MooseConfig.getDiskCacheMaxBytes(), this.version);
+                } catch (IOException e) {
+                    MooseLogger.getLogger().log(Level.WARNING, "Error opening the disk cache, running without it", e);
+                }
+            }
+            this.initialized = true;
         }
     }
 
     @GET
     @Path("antler")
-    public Response antlerificate(@QueryParam("image") String sourceImage,
-                                  @QueryParam("debug") String debug) {
-        return processRequest(MooseRequest.newBuilder()
+    public void antlerificate(@QueryParam("image") String sourceImage,
+                              @QueryParam("debug") String debug,
+                              @QueryParam("format") String format,
+                              @Context Request request,
+                              @Suspended AsyncResponse asyncResponse) {
+        processRequest(MooseRequest.newBuilder()
                 .withRequestType(MooseRequest.RequestType.ANTLER)
                 .withOriginalImageUrl(sourceImage)
-                .withDebug(debug));
+                .withDebug(debug)
+                .withOutputFormat(outputFormat(format, request)), request, asyncResponse);
     }
 
     @GET
     @Path("moose")
-    public Response moosificate(@QueryParam("image") String sourceImage,
-                                @QueryParam("debug") String debug) {
-        return processRequest(MooseRequest.newBuilder()
+    public void moosificate(@QueryParam("image") String sourceImage,
+                            @QueryParam("debug") String debug,
+                            @QueryParam("format") String format,
+                            @Context Request request,
+                            @Suspended AsyncResponse asyncResponse) {
+        processRequest(MooseRequest.newBuilder()
                         .withRequestType(MooseRequest.RequestType.MOOSE)
                         .withOriginalImageUrl(sourceImage)
                         .withOverlayImageName(DEFAULT_MOOSE_NAME)
-                        .withDebug(debug));
+                        .withDebug(debug)
+                .withOutputFormat(outputFormat(format, request)), request, asyncResponse);
     }
 
     @GET
     @Path("moose/{name}")
-    public Response moosificateByName(@PathParam("name") String name,
-                                      @QueryParam("image") String sourceImage,
-                                      @QueryParam("debug") String debug) {
-        return processRequest(MooseRequest.newBuilder()
+    public void moosificateByName(@PathParam("name") String name,
+                                  @QueryParam("image") String sourceImage,
+                                  @QueryParam("debug") String debug,
+                                  @QueryParam("format") String format,
+                                  @Context Request request,
+                                  @Suspended AsyncResponse asyncResponse) {
+        processRequest(MooseRequest.newBuilder()
                 .withRequestType(MooseRequest.RequestType.NAMED)
                 .withOriginalImageUrl(sourceImage)
                 .withOverlayImageName(name)
-                .withDebug(debug));
+                .withDebug(debug)
+                .withOutputFormat(outputFormat(format, request)), request, asyncResponse);
     }
 
     @GET
     @Path("remoose")
-    public Response remoosificate(@QueryParam("image") String sourceImage,
-                                  @QueryParam("overlayImage") String overlayImageUrl,
-                                  @QueryParam("debug") String debug) {
-        return processRequest(MooseRequest.newBuilder()
-                .withRequestType(MooseRequest.RequestType.MOOSE)
+    public void remoosificate(@QueryParam("image") String sourceImage,
+                              @QueryParam("overlayImage") String overlayImageUrl,
+                              @QueryParam("debug") String debug,
+                              @QueryParam("format") String format,
+                              @Context Request request,
+                              @Suspended AsyncResponse asyncResponse) {
+        processRequest(MooseRequest.newBuilder()
+                .withRequestType(MooseRequest.RequestType.RE_MOOSE)
                 .withOriginalImageUrl(sourceImage)
                 .withOverlayImageUrl(overlayImageUrl)
-                .withDebug(debug));
+                .withDebug(debug)
+                .withOutputFormat(outputFormat(format, request)), request, asyncResponse);
+    }
+
+    /**
+     * Finds the faces in an image without moosificating it, see {@link FaceDetection} for the JSON returned.
+     * Detections go through the same fetch, coalescing and disk cache as moosifications, and have their own memory
+     * cache.
+     */
+    @GET
+    @Path("faces")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void findFaces(@QueryParam("image") String sourceImage,
+                          @Context Request request,
+                          @Suspended AsyncResponse asyncResponse) {
+        processRequest(MooseRequest.newBuilder()
+                .withRequestType(MooseRequest.RequestType.FACES)
+                .withOriginalImageUrl(sourceImage), request, asyncResponse);
     }
-    private Response processRequest(MooseRequest.MooseRequestBuilder mooseRequestBuilder) {
+
+    /**
+     * @return the counters of the memory caches and the source hosts failing, in JSON
+     */
+    @GET
+    @Path("stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> stats() {
+        initializeIfRequired();
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("gifCache", this.gifCache.getStats());
+        stats.put("sourceHosts", this.hostHealth.getStats());
+        return stats;
+    }
+
+    /**
+     * Moosificates an image sent as the raw body of the request rather than fetched from a URL. Moosifications of
+     * uploads are cached by the content hash of the image, so sending the same image again is answered from the
+     * caches.
+     */
+    @POST
+    @Path("moose")
+    @Consumes({"image/*", MediaType.APPLICATION_OCTET_STREAM})
+    public void moosificateUpload(InputStream image,
+                                  @QueryParam("debug") String debug,
+                                  @QueryParam("format") String format,
+                                  @Context HttpHeaders headers,
+                                  @Context Request request,
+                                  @Suspended AsyncResponse asyncResponse) {
+        processUpload(image, headers.getLength(), debug, format, request, asyncResponse);
+    }
+
+    /**
+     * Same as {@link #moosificateUpload}, for an image sent as the <code>image</code> part of a form.
+     */
+    @POST
+    @Path("moose")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    public void moosificateFormUpload(@FormDataParam("image") InputStream image,
+                                      @QueryParam("debug") String debug,
+                                      @QueryParam("format") String format,
+                                      @Context Request request,
+                                      @Suspended AsyncResponse asyncResponse) {
+        // The length of the form isn't the one of the image, the image is only checked as it is read
+        processUpload(image, -1, debug, format, request, asyncResponse);
+    }
+
+    private void processUpload(InputStream image, long length, String debug, String format, Request request,
+                               AsyncResponse asyncResponse) {
         initializeIfRequired();
 
+        if (image == null) {
+            asyncResponse.resume(plainError(Response.Status.BAD_REQUEST, "Missing image"));
+            return;
+        }
+        if (length > MooseConfig.getFetchMaxBytes()) {
+            asyncResponse.resume(plainError(Response.Status.REQUEST_ENTITY_TOO_LARGE,
+                    format("Image is %d bytes, more than the maximum of %d", length, MooseConfig.getFetchMaxBytes())));
+            return;
+        }
+
+        SourceImage source;
         try {
-            MooseRequest mooseRequest = mooseRequestBuilder.build();
+            source = SourceImage.read(image, MooseConfig.getFetchMaxBytes());
+        } catch (SourceImage.TooLargeException e) {
+            asyncResponse.resume(plainError(Response.Status.REQUEST_ENTITY_TOO_LARGE, e.getMessage()));
+            return;
+        } catch (IOException e) {
+            asyncResponse.resume(plainError(Response.Status.BAD_REQUEST, e.getMessage()));
+            return;
+        }
 
-            // Validate image overlay
-            if (mooseRequest.getOverlayImageName() != null) {
-                if (this.namedMooseOverlays.get(mooseRequest.getOverlayImageName()) == null) {
-                    throw new MooseException(MooseException.MooseExceptionType.INVALID_MOOSE_NAME);
+        processRequest(MooseRequest.newBuilder()
+                .withRequestType(MooseRequest.RequestType.MOOSE)
+                .withUploadedImage(source.getContentHash())
+                .withOverlayImageName(DEFAULT_MOOSE_NAME)
+                .withDebug(debug)
+                .withOutputFormat(outputFormat(format, request)), source, request, asyncResponse);
+    }
+
+    /**
+     * Moosificates many images in one call. Items go through the same caches and coalescing as single requests, at
+     * most {@link MooseConfig#getBatchParallelism()} at a time. They are streamed back in a zip as they complete,
+     * named after their position in the batch (<code>007.png</code>), and followed by a <code>manifest.json</code>
+     * listing each item with its entry or error. The zip is written on the batch executor, and items that take longer
+     * than {@link MooseConfig#getRequestTimeoutMillis()} once started are listed as timed out.
+     */
+    @POST
+    @Path("moose/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(BATCH_MEDIA_TYPE)
+    public void moosificateBatch(BatchRequest batchRequest, @Suspended final AsyncResponse asyncResponse) {
+        initializeIfRequired();
+
+        final List<BatchRequest.Item> items = batchRequest == null ? null : batchRequest.getItems();
+        if (items == null || items.isEmpty() || items.size() > MooseConfig.getBatchMaxItems()) {
+            asyncResponse.resume(plainError(Response.Status.BAD_REQUEST,
+                    format("A batch holds 1 to %d items", MooseConfig.getBatchMaxItems())));
+            return;
+        }
+
+        final StreamingOutput stream = new StreamingOutput() {
+            @Override
+            public void write(OutputStream os) throws IOException, WebApplicationException {
+                writeBatch(items, os);
+            }
+        };
+        try {
+            // The zip is written by the thread resuming the response
+            this.batchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    asyncResponse.resume(Response.ok(stream, BATCH_MEDIA_TYPE).build());
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            MooseLogger.getLogger().log(Level.WARNING, "Too many pending batches, rejecting request");
+            asyncResponse.resume(serviceUnavailable());
+        }
+    }
+
+    private void writeBatch(List<BatchRequest.Item> items, OutputStream os) throws IOException {
+        final BlockingQueue<BatchEntry> completed = new LinkedBlockingQueue<>();
+        List<Map<String, Object>> manifest =
+                new ArrayList<>(Collections.<Map<String, Object>>nCopies(items.size(), null));
+        ZipOutputStream zip = new ZipOutputStream(os);
+        // Images are compressed already
+        zip.setLevel(Deflater.NO_COMPRESSION);
+
+        // Items being moosificated and when they time out, oldest first
+        Map<Integer, Long> pending = new LinkedHashMap<>();
+        int started = 0;
+        while (started < items.size() || !pending.isEmpty()) {
+            while (started < items.size() && pending.size() < Math.max(1, MooseConfig.getBatchParallelism())) {
+                pending.put(started, System.currentTimeMillis() + MooseConfig.getRequestTimeoutMillis());
+                startBatchItem(started++, items, completed);
             }
 
-            URL imageUrl = mooseRequest.getOriginalImageUrl();
-            HttpURLConnection connection = (HttpURLConnection) imageUrl.openConnection();
-            String contentType;
+            BatchEntry entry;
             try {
-                connection.setRequestMethod("HEAD");
-                connection.connect();
-                contentType = connection.getContentType();
+                long timeout = pending.values().iterator().next() - System.currentTimeMillis();
+                entry = completed.poll(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for batch items", e);
+            }
+            if (entry == null) {
+                // Still listed in the manifest, the zip stays readable and its slot goes to the next item
+                entry = new BatchEntry(pending.keySet().iterator().next(), null, "Timed out");
+            }
+            if (pending.remove(entry.index) == null) {
+                // Completed after it timed out
+                continue;
+            }
+
+            Map<String, Object> manifestItem = new LinkedHashMap<>();
+            manifestItem.put("image", items.get(entry.index).getImage());
+            if (entry.result != null && entry.result.isPresent()) {
+                MooseResult result = entry.result.get();
+                String name = format("%03d.%s", entry.index, MediaType.valueOf(result.getContentType()).getSubtype());
+                zip.putNextEntry(new ZipEntry(name));
+                result.writeTo(zip);
+                zip.closeEntry();
+                // Hand each image over as soon as it is done
+                zip.flush();
+                manifestItem.put("entry", name);
+                manifestItem.put("contentType", result.getContentType());
+                manifestItem.put("etag", result.getEtag());
+            } else {
+                manifestItem.put("error", entry.error);
+            }
+            manifest.set(entry.index, manifestItem);
+        }
+
+        zip.putNextEntry(new ZipEntry("manifest.json"));
+        zip.write(new ObjectMapper().writeValueAsBytes(manifest));
+        zip.closeEntry();
+        zip.finish();
+        zip.flush();
+    }
+
+    private void startBatchItem(final int index, List<BatchRequest.Item> items,
+                                final BlockingQueue<BatchEntry> completed) {
+        BatchRequest.Item item = items.get(index);
+        final MooseRequest mooseRequest;
+        try {
+            mooseRequest = buildRequest(builderFor(item));
+        } catch (MooseException e) {
+            completed.add(new BatchEntry(index, null, e.getMessage()));
+            return;
+        }
+
+        Futures.addCallback(moosify(mooseRequest, null, null), new FutureCallback<Optional<MooseResult>>() {
+            @Override
+            public void onSuccess(Optional<MooseResult> result) {
+                completed.add(new BatchEntry(index, result, result.isPresent() ? null : "Moosification failed"));
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                completed.add(new BatchEntry(index, null, error instanceof RejectedExecutionException
+                        ? "Too many pending moosifications" : "Moosification failed"));
+            }
+        });
+    }
+
+    /**
+     * @return the builder of the request an item of a batch stands for, as the endpoint of its type would build it
+     */
+    private static MooseRequest.MooseRequestBuilder builderFor(BatchRequest.Item item) {
+        MooseRequest.MooseRequestBuilder builder = MooseRequest.newBuilder()
+                .withOriginalImageUrl(item.getImage())
+                .withDebug(item.getDebug())
+                .withOutputFormat(item.getFormat());
+        String type = item.getType() == null ? "moose" : item.getType().toLowerCase(Locale.ROOT);
+        switch (type) {
+            case "antler":
+                return builder.withRequestType(MooseRequest.RequestType.ANTLER);
+            case "moose":
+                return builder.withRequestType(MooseRequest.RequestType.MOOSE)
+                        .withOverlayImageName(DEFAULT_MOOSE_NAME);
+            case "named":
+                return builder.withRequestType(MooseRequest.RequestType.NAMED)
+                        .withOverlayImageName(item.getName());
+            case "remoose":
+                return builder.withRequestType(MooseRequest.RequestType.RE_MOOSE)
+                        .withOverlayImageUrl(item.getOverlayImage());
+            default:
+                // Fails the build of the request
+                return builder;
+        }
+    }
+
+    /**
+     * An item of a batch once it completed: its result, or why there is none.
+     */
+    private static final class BatchEntry {
+        private final int index;
+        private final Optional<MooseResult> result;
+        private final String error;
+
+        private BatchEntry(int index, Optional<MooseResult> result, String error) {
+            this.index = index;
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+    /**
+     * @return the output format asked for with <code>format=</code>, else the one the Accept header prefers
+     */
+    private static String outputFormat(String format, Request request) {
+        if (format != null) {
+            return format;
+        }
+        Variant variant = request.selectVariant(OUTPUT_VARIANTS);
+        return variant == null ? null : variant.getMediaType().getSubtype();
+    }
+
+    /**
+     * Answers cached results right away. Anything else is handed to the fetch executor and then to the compute
+     * executor, so the container thread is released as soon as the request is validated. Concurrent requests for the
+     * same moosification share a single fetch and moosification.
+     */
+    private void processRequest(MooseRequest.MooseRequestBuilder mooseRequestBuilder, Request request,
+                                AsyncResponse asyncResponse) {
+        processRequest(mooseRequestBuilder, null, request, asyncResponse);
+    }
+
+    /**
+     * @param upload the image uploaded with the request, null to fetch it from its URL
+     */
+    private void processRequest(MooseRequest.MooseRequestBuilder mooseRequestBuilder, SourceImage upload,
+                                Request request, final AsyncResponse asyncResponse) {
+        initializeIfRequired();
+
+        asyncResponse.setTimeout(MooseConfig.getRequestTimeoutMillis(), TimeUnit.MILLISECONDS);
+        asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+            @Override
+            public void handleTimeout(AsyncResponse asyncResponse) {
+                asyncResponse.resume(serviceUnavailable());
             }
-            finally {
-                connection.disconnect();
+        });
+
+        final MooseRequest mooseRequest;
+        try {
+            mooseRequest = buildRequest(mooseRequestBuilder);
+        } catch (MooseException e) {
+            asyncResponse.resume(errorResponse(e, mooseRequestBuilder.getRequestType()));
+            return;
+        }
+
+        // The ETag only depends on the request, so clients that already have the moosification are answered
+        // before anything is looked up or fetched
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(new EntityTag(etagFor(mooseRequest)));
+        if (notModified != null) {
+            asyncResponse.resume(notModified.cacheControl(cacheControl()).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build());
+            return;
+        }
+
+        respondWhenDone(mooseRequest, moosify(mooseRequest, upload, asyncResponse), request, asyncResponse);
+    }
+
+    private MooseRequest buildRequest(MooseRequest.MooseRequestBuilder mooseRequestBuilder) throws MooseException {
+        MooseRequest mooseRequest = mooseRequestBuilder.build();
+
+        // Validate image overlay
+        if (mooseRequest.getOverlayImageName() != null) {
+            if (this.namedMooseOverlays.get(mooseRequest.getOverlayImageName()) == null) {
+                throw new MooseException(MooseException.MooseExceptionType.INVALID_MOOSE_NAME);
+            }
+        }
+        return mooseRequest;
+    }
+
+    /**
+     * Looks the moosification up in the caches and among those in flight, and only starts it if it is nowhere to be
+     * found.
+     *
+     * @param mooseRequest the moosification wanted
+     * @param upload the image uploaded with the request, null to fetch it from its URL
+     * @param asyncResponse the response an animated GIF is streamed to as it is moosificated if this request starts
+     *                      it, null to only get the whole result
+     * @return the moosification, absent if it failed
+     */
+    private ListenableFuture<Optional<MooseResult>> moosify(final MooseRequest mooseRequest, SourceImage upload,
+                                                            final AsyncResponse asyncResponse) {
+        // Only go to the source on a miss: a single fetch tells us which pipeline (and cache) the image needs
+        Optional<MooseResult> cachedResult;
+        if (mooseRequest.getRequestType() == MooseRequest.RequestType.FACES) {
+            cachedResult = this.faceCache.getIfPresent(mooseRequest);
+        } else {
+            cachedResult = this.imageCache.getIfPresent(mooseRequest);
+            if (cachedResult == null) {
+                MooseResult gifResult = this.gifCache.getIfPresent(mooseRequest.forAnimation());
+                cachedResult = gifResult == null ? null : Optional.of(gifResult);
+            }
+        }
+        if (cachedResult == null && this.diskCache != null) {
+            Optional<MooseResult> storedResult = storedResult(mooseRequest);
+            if (storedResult.isPresent()) {
+                cacheInMemory(mooseRequest, storedResult);
+                cachedResult = storedResult;
+            }
+        }
+        if (cachedResult != null) {
+            return Futures.immediateFuture(cachedResult);
+        }
+        if (mooseRequest.getRequestType() != MooseRequest.RequestType.FACES) {
+            MooseResult noFaceResult = this.noFaceCache.getIfPresent(noFaceKeyFor(mooseRequest));
+            if (noFaceResult != null) {
+                return Futures.immediateFuture(Optional.of(new MooseResult(noFaceResult.getContent(),
+                        noFaceResult.getContentType(), etagFor(mooseRequest))));
+            }
+        }
+
+        final SettableFuture<Optional<MooseResult>> moosification = SettableFuture.create();
+        ListenableFuture<Optional<MooseResult>> inFlight =
+                this.inFlightMoosifications.putIfAbsent(mooseRequest, moosification);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        moosification.addListener(new Runnable() {
+            @Override
+            public void run() {
+                inFlightMoosifications.remove(mooseRequest, moosification);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        if (upload != null) {
+            // Already at hand, straight to the compute executor
+            submitCompute(mooseRequest, upload, asyncResponse, moosification);
+            return moosification;
+        }
+
+        if (!allowFetches(mooseRequest)) {
+            // Fails like the fetch would, without tying up a fetch thread until it times out
+            moosification.set(Optional.<MooseResult>absent());
+            return moosification;
+        }
+
+        submit(this.fetchExecutor, moosification, new Callable<Void>() {
+            @Override
+            public Void call() {
+                final SourceImage source;
+                try {
+                    source = fetch(mooseRequest.getOriginalImageUrl(), mooseRequest.getOriginalImageKey());
+                } catch (IOException e) {
+                    MooseLogger.logEventForErrorMoosificating(mooseRequest, e);
+                    MooseLogger.getLogger().log(Level.WARNING, format("Error fetching image for url [%s]",
+                            mooseRequest.getSource()), e);
+                    moosification.set(Optional.<MooseResult>absent());
+                    return null;
+                }
+
+                if (mooseRequest.hasOverlayImageFromUrl()) {
+                    // Fetched here with the source rather than on a compute thread, when it isn't cached already
+                    try {
+                        overlayFaceFor(mooseRequest);
+                    } catch (IOException | RuntimeException e) {
+                        MooseLogger.logEventForErrorMoosificating(mooseRequest, e);
+                        MooseLogger.getLogger().log(Level.WARNING, format("Error loading overlay image for url [%s]",
+                                mooseRequest.getOverlayImageUrl().toExternalForm()), e);
+                        moosification.set(Optional.<MooseResult>absent());
+                        return null;
+                    }
+                }
+
+                submitCompute(mooseRequest, source, asyncResponse, moosification);
+                return null;
             }
-            if (!contentType.toLowerCase().endsWith("gif")) {
-                final Optional<BufferedImage> moosificationResult = this.imageCache.get(mooseRequest);
+        });
+        return moosification;
+    }
 
-                if (!moosificationResult.isPresent()) {
-                    return Response.ok(this.serverErrorMoose).build();
+    /**
+     * @return false if the source image, or the overlay image when it isn't cut out already, failed recently or is on
+     * a failing host
+     */
+    private boolean allowFetches(MooseRequest mooseRequest) {
+        if (!this.hostHealth.allowFetch(mooseRequest.getOriginalImageUrl(), mooseRequest.getOriginalImageKey())) {
+            MooseLogger.getLogger().log(Level.INFO, format("Not fetching failing image [%s]",
+                    mooseRequest.getSource()));
+            return false;
+        }
+        if (mooseRequest.hasOverlayImageFromUrl()
+                && this.overlayFaces.getIfPresent(mooseRequest.getOverlayImageKey()) == null
+                && !this.hostHealth.allowFetch(mooseRequest.getOverlayImageUrl(), mooseRequest.getOverlayImageKey())) {
+            MooseLogger.getLogger().log(Level.INFO, format("Not fetching failing overlay image [%s]",
+                    mooseRequest.getOverlayImageUrl().toExternalForm()));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Fetches an image, keeping track of how its host is doing.
+     */
+    private SourceImage fetch(URL url, String key) throws IOException {
+        try {
+            SourceImage source = SourceImage.fetch(url);
+            this.hostHealth.recordSuccess(url);
+            return source;
+        } catch (IOException e) {
+            this.hostHealth.recordFailure(url, key, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Moosificates an image at hand on the compute executor, then caches and completes the moosification.
+     */
+    private void submitCompute(final MooseRequest mooseRequest, final SourceImage source,
+                               final AsyncResponse asyncResponse,
+                               final SettableFuture<Optional<MooseResult>> moosification) {
+        submit(this.computeExecutor, moosification, new Callable<Void>() {
+            @Override
+            public Void call() throws ExecutionException {
+                Optional<MooseResult> result;
+                MooseRequest resultRequest = mooseRequest;
+                if (mooseRequest.getRequestType() == MooseRequest.RequestType.FACES) {
+                    result = faceCache.get(mooseRequest, new FaceDetectionLoader(mooseRequest, source));
+                } else if (source.isGif()) {
+                    resultRequest = mooseRequest.forAnimation();
+                    if (resultRequest != mooseRequest && !claimAnimation(resultRequest, moosification)) {
+                        return null;
+                    }
+                    // Streamed to this request as frames complete, coalesced requests get the whole result
+                    gifCache.recordMiss(resultRequest);
+                    result = new MoosificatorGifStream(resultRequest, source).streamTo(asyncResponse);
+                    gifCache.put(resultRequest, result);
                 } else {
-                    StreamingOutput stream = new StreamingOutput() {
-                        @Override
-                        public void write(OutputStream os) throws IOException,
-                                WebApplicationException {
-                            ImageIO.write(moosificationResult.get(), "PNG", os);
-                        }
-                    };
+                    result = imageCache.get(mooseRequest, new MoosificatorCacheLoader(mooseRequest, source));
+                }
+                if (result.isPresent() && diskCache != null) {
+                    diskCache.put(resultRequest, result.get());
+                }
+                moosification.set(result);
+                return null;
+            }
+        });
+    }
 
-                    return Response.ok(stream).build();
+    /**
+     * Coalesces a moosification asked for in another format than the default with the one of the same animation in
+     * the default format: both are the same GIF.
+     *
+     * @param animationRequest the request the animation is moosificated under, see {@link MooseRequest#forAnimation()}
+     * @return true if the animation is to be moosificated by this moosification, false if it completes with the one
+     * already in flight
+     */
+    private boolean claimAnimation(final MooseRequest animationRequest,
+                                   final SettableFuture<Optional<MooseResult>> moosification) {
+        ListenableFuture<Optional<MooseResult>> inFlight =
+                this.inFlightMoosifications.putIfAbsent(animationRequest, moosification);
+        if (inFlight == null) {
+            moosification.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    inFlightMoosifications.remove(animationRequest, moosification);
                 }
-            } else {
-                final Optional<byte[]> moosificationResult = this.gifCache.get(mooseRequest);
-                if (!moosificationResult.isPresent()) {
-                    return Response.ok(this.serverErrorMoose).build();
+            }, MoreExecutors.sameThreadExecutor());
+            return true;
+        }
+
+        Futures.addCallback(inFlight, new FutureCallback<Optional<MooseResult>>() {
+            @Override
+            public void onSuccess(Optional<MooseResult> result) {
+                moosification.set(result);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                moosification.setException(error);
+            }
+        });
+        return false;
+    }
+
+    /**
+     * Runs a stage of a moosification on the given executor. Stages complete the moosification themselves, anything
+     * they throw fails it and a full executor fails it with a {@link RejectedExecutionException}.
+     */
+    private void submit(ExecutorService executor, final SettableFuture<?> moosification, final Callable<Void> stage) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stage.call();
+                    } catch (Throwable error) {
+                        moosification.setException(error);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            MooseLogger.getLogger().log(Level.WARNING, "Too many pending moosifications, rejecting request");
+            moosification.setException(e);
+        }
+    }
+
+    private void respondWhenDone(final MooseRequest mooseRequest, ListenableFuture<Optional<MooseResult>> moosification,
+                                 final Request request, final AsyncResponse asyncResponse) {
+        Futures.addCallback(moosification, new FutureCallback<Optional<MooseResult>>() {
+            @Override
+            public void onSuccess(Optional<MooseResult> output) {
+                // Animations are tagged whatever format was asked for, so their tag is only known from the result
+                Response.ResponseBuilder notModified = output.isPresent()
+                        ? request.evaluatePreconditions(new EntityTag(output.get().getEtag())) : null;
+                if (notModified != null) {
+                    asyncResponse.resume(notModified.cacheControl(cacheControl())
+                            .header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build());
+                    return;
+                }
+                asyncResponse.resume(moosificationResponse(mooseRequest, output));
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                if (error instanceof RejectedExecutionException) {
+                    asyncResponse.resume(serviceUnavailable());
                 } else {
-                    StreamingOutput stream = new StreamingOutput() {
-                        @Override
-                        public void write(OutputStream os) throws IOException,
-                                WebApplicationException {
-                            os.write(moosificationResult.get());
-                        }
-                    };
-                    return Response.ok(stream).build();
+                    asyncResponse.resume(error);
                 }
             }
-        } catch (MooseException e) {
-            switch (e.getMooseExceptionType()) {
-                case INVALID_SOURCE_URL:
-                case INVALID_RE_MOOSE_URL:
-                    return Response.ok(this.badUrlExceptionImage).build();
-                case INVALID_MOOSE_NAME:
-                    return Response.ok(this.unrecognizedMooseImage).build();
-                case MISSING_REQUEST_TYPE:
-                case MISSING_SOURCE_URL:
-                case MISSING_MOOSE_NAME:
-                case MISSING_RE_MOOSE_URL:
-                default:
-                    return Response.ok(this.serverErrorMoose).build();
+        });
+    }
+
+    /**
+     * @return the result stored on disk for a request, or the animation it stands for stored under the default format
+     */
+    private Optional<MooseResult> storedResult(MooseRequest mooseRequest) {
+        Optional<MooseResult> storedResult = this.diskCache.get(mooseRequest);
+        MooseRequest animationRequest = mooseRequest.forAnimation();
+        if (storedResult.isPresent() || animationRequest == mooseRequest) {
+            return storedResult;
+        }
+        storedResult = this.diskCache.get(animationRequest);
+        // A still image in the default format isn't what was asked for
+        return storedResult.isPresent() && MooseResult.GIF.equals(storedResult.get().getContentType())
+                ? storedResult : Optional.<MooseResult>absent();
+    }
+
+    private void cacheInMemory(MooseRequest mooseRequest, Optional<MooseResult> result) {
+        switch (result.get().getContentType()) {
+            case MooseResult.GIF:
+                // Missing from memory, it only gets back there if admitted
+                this.gifCache.recordMiss(mooseRequest.forAnimation());
+                this.gifCache.put(mooseRequest.forAnimation(), result);
+                break;
+            case MooseResult.JSON:
+                this.faceCache.put(mooseRequest, result);
+                break;
+            default:
+                this.imageCache.put(mooseRequest, result);
+                break;
+        }
+    }
+
+    private Response moosificationResponse(MooseRequest mooseRequest, final Optional<MooseResult> result) {
+        if (!result.isPresent()) {
+            if (mooseRequest.getRequestType() == MooseRequest.RequestType.FACES) {
+                return plainError(Response.Status.INTERNAL_SERVER_ERROR, "Error finding faces in the image");
             }
-        } catch (Throwable error) {
-            throw Throwables.propagate(error);
+            return Response.ok(this.serverErrorMoose, MooseResult.PNG).build();
         }
+
+        StreamingOutput stream = new StreamingOutput() {
+            @Override
+            public void write(OutputStream os) throws IOException,
+                    WebApplicationException {
+                result.get().writeTo(os);
+            }
+        };
+        return Response.ok(stream, result.get().getContentType())
+                .header(HttpHeaders.CONTENT_LENGTH, result.get().getSize())
+                .tag(new EntityTag(result.get().getEtag()))
+                .cacheControl(cacheControl())
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT)
+                .build();
+    }
+
+    private CacheControl cacheControl() {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(MooseConfig.getCacheMaxAgeSeconds());
+        return cacheControl;
+    }
+
+    /**
+     * @return the strong entity tag of the moosification a request asks for
+     */
+    private String etagFor(MooseRequest mooseRequest) {
+        return Hashing.murmur3_128().newHasher()
+                .putString(this.version, StandardCharsets.UTF_8)
+                .putString(mooseRequest.getKey(), StandardCharsets.UTF_8)
+                .hash()
+                .toString();
+    }
+
+    /**
+     * Hashes everything bundled that a moosification depends on: the face cascade and every image under
+     * <code>/moose</code>, along with {@link #RENDERING_VERSION}. Changing any of them changes the ETags and
+     * retires the results stored on disk.
+     */
+    private static String versionOfResources() throws IOException {
+        Hasher hasher = Hashing.murmur3_128().newHasher().putInt(RENDERING_VERSION);
+        try (InputStream profile = MoosificatorApp.class.getResourceAsStream(HaarCascade.DEFAULT_PROFILE)) {
+            hasher.putBytes(ByteStreams.toByteArray(profile));
+        }
+
+        final java.nio.file.Path mooseDirectory = Paths.get(MoosificatorApp.class.getResource("/moose/").getPath());
+        final List<java.nio.file.Path> files = new ArrayList<>();
+        Files.walkFileTree(mooseDirectory, new SimpleFileVisitor<java.nio.file.Path>() {
+            @Override
+            public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attributes) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        for (java.nio.file.Path file : files) {
+            hasher.putString(mooseDirectory.relativize(file).toString(), StandardCharsets.UTF_8);
+            hasher.putBytes(Files.readAllBytes(file));
+        }
+        return hasher.hash().toString();
+    }
+
+    private Response errorResponse(MooseException e, MooseRequest.RequestType requestType) {
+        if (requestType == MooseRequest.RequestType.FACES) {
+            // Clients of face detection expect data, not a picture of the problem
+            return plainError(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+        switch (e.getMooseExceptionType()) {
+            case INVALID_SOURCE_URL:
+            case INVALID_RE_MOOSE_URL:
+                return Response.ok(this.badUrlExceptionImage, MooseResult.PNG).build();
+            case INVALID_MOOSE_NAME:
+                return Response.ok(this.unrecognizedMooseImage, MooseResult.PNG).build();
+            case MISSING_REQUEST_TYPE:
+            case MISSING_SOURCE_URL:
+            case MISSING_MOOSE_NAME:
+            case MISSING_RE_MOOSE_URL:
+            default:
+                return Response.ok(this.serverErrorMoose, MooseResult.PNG).build();
+        }
+    }
+
+    private static Response plainError(Response.Status status, String message) {
+        return Response.status(status)
+                .type(MediaType.TEXT_PLAIN)
+                .entity(message)
+                .build();
+    }
+
+    private Response serviceUnavailable() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, 1)
+                .entity(this.serverErrorMoose)
+                .type(MooseResult.PNG)
+                .build();
     }
 
-    public class MoosificatorCacheLoader extends CacheLoader<MooseRequest, Optional<BufferedImage>> {
+    /**
+     * Fixed size pool that rejects work once <code>queueSize</code> tasks are waiting instead of letting requests
+     * pile up.
+     */
+    private static ExecutorService newBoundedExecutor(String nameFormat, int threads, int queueSize) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public class MoosificatorCacheLoader implements Callable<Optional<MooseResult>> {
+        private final MooseRequest mooseRequest;
+        private final SourceImage source;
+
+        public MoosificatorCacheLoader(MooseRequest mooseRequest, SourceImage source) {
+            this.mooseRequest = mooseRequest;
+            this.source = source;
+        }
+
         @Override
-        public Optional<BufferedImage> load(MooseRequest mooseRequest) throws Exception {
+        public Optional<MooseResult> call() {
             try {
-                return Optional.of(moosificateImage(mooseRequest));
+                MooseLogger.logEventForNewMooseSource(mooseRequest.getSource());
+                BufferedImage canvas = canvasOf(source.decode(MAX_IMAGE_SIZE_IN_PIXELS));
+                List<Rect> faces = detectFacesInStill(canvas);
+                BufferedImage moosificated = moosificateFrame(canvas, faces, mooseRequest, true);
+
+                // Encoded once here so cache hits are a plain copy of the bytes
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                MooseResult result;
+                if (mooseRequest.getOutputFormat() == MooseRequest.OutputFormat.JPEG) {
+                    jpegEncoder.encode(moosificated, bos);
+                    result = new MooseResult(bos.toByteArray(), MooseResult.JPEG, etagFor(mooseRequest));
+                } else {
+                    pngEncoder.encode(moosificated, bos);
+                    result = new MooseResult(bos.toByteArray(), MooseResult.PNG, etagFor(mooseRequest));
+                }
+                if (faces.isEmpty()) {
+                    noFaceCache.put(noFaceKeyFor(mooseRequest), result);
+                }
+                return Optional.of(result);
             } catch (Throwable e) {
                 MooseLogger.logEventForErrorMoosificating(mooseRequest, e);
                 MooseLogger.getLogger().log(Level.WARNING, format("Error generating image for url [%s]",
-                        mooseRequest.getOriginalImageUrl().toExternalForm()), e);
+                        mooseRequest.getSource()), e);
                 return Optional.absent();
             }
         }
     }
 
-    public class MoosificatorGifCacheLoader extends CacheLoader<MooseRequest, Optional<byte[]>> {
+    /**
+     * Finds the faces in an image and encodes them in JSON, leaving the image alone.
+     */
+    public class FaceDetectionLoader implements Callable<Optional<MooseResult>> {
+        private final MooseRequest mooseRequest;
+        private final SourceImage source;
+
+        public FaceDetectionLoader(MooseRequest mooseRequest, SourceImage source) {
+            this.mooseRequest = mooseRequest;
+            this.source = source;
+        }
+
         @Override
-        public Optional<byte[]> load(MooseRequest mooseRequest) throws Exception {
+        public Optional<MooseResult> call() {
+            try {
+                long start = System.nanoTime();
+                Dimension dimensions = source.getDimensions();
+                // Searched at the size moosifications are drawn at, so faces are the ones they would get
+                BufferedImage canvas = canvasOf(source.decode(MAX_IMAGE_SIZE_IN_PIXELS));
+                long decoded = System.nanoTime();
+                List<Rect> rectangles = detectFacesInStill(canvas);
+                List<Rect> faces = rectangles.isEmpty() ? rectangles : findDistinctFaces(rectangles);
+                long detected = System.nanoTime();
 
+                FaceDetection detection = new FaceDetection(dimensions.width, dimensions.height,
+                        canvas.getWidth(), canvas.getHeight(), faces, TimeUnit.NANOSECONDS.toMillis(decoded - start),
+                        TimeUnit.NANOSECONDS.toMillis(detected - decoded));
+                return Optional.of(new MooseResult(new ObjectMapper().writeValueAsBytes(detection), MooseResult.JSON,
+                        etagFor(mooseRequest)));
+            } catch (Throwable e) {
+                MooseLogger.logEventForErrorMoosificating(mooseRequest, e);
+                MooseLogger.getLogger().log(Level.WARNING, format("Error finding faces for url [%s]",
+                        mooseRequest.getSource()), e);
+                return Optional.absent();
+            }
+        }
+    }
+
+    /**
+     * Moosificates an animated GIF as a stream of frames: frames are decoded in order and moosificated concurrently
+     * on the frame executor, then encoded in their original order. At most
+     * {@link MooseConfig#getGifFramesInFlight()} frames are alive at any time whatever the length of the animation.
+     * Encoded frames are streamed to the response of the request that started the moosification as they complete,
+     * and teed into the result that gets cached.
+     */
+    public class MoosificatorGifStream {
+        private final MooseRequest mooseRequest;
+        private final SourceImage source;
+        private final ImageReader reader = GifCodecs.acquireReader();
+        private final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        private IIOImage firstFrame;
+        private boolean complete;
+
+        public MoosificatorGifStream(MooseRequest mooseRequest, SourceImage source) {
+            this.mooseRequest = mooseRequest;
+            this.source = source;
+        }
+
+        /**
+         * @param asyncResponse the response to stream the animation to if it is still waiting, null if there is none
+         * @return the whole moosificated animation, absent if it failed
+         */
+        public Optional<MooseResult> streamTo(AsyncResponse asyncResponse) {
             try {
-                final ArrayList<IIOImage> frames = new ArrayList<>();
-                final ImageReader ir = new GIFImageReader(new GIFImageReaderSpi());
-                ir.setInput(ImageIO.createImageInputStream(mooseRequest.getOriginalImageUrl().openStream()));
-                for (int i = 0; i < ir.getNumImages(true); i++) {
-                    frames.add(ir.readAll(i, null));
-                }
+                this.reader.setInput(new MemoryCacheImageInputStream(this.source.openStream()), true);
+                // Decoded before anything is sent so an unreadable GIF still gets the server error moose
+                SourceImage.checkDimensions(this.reader, 0);
+                this.firstFrame = this.reader.readAll(0, null);
 
-                final GIFImageWriter gifImageWriter = new GIFImageWriter(new GIFImageWriterSpi());
-                final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(bos);
-                gifImageWriter.setOutput(imageOutputStream);
-                gifImageWriter.prepareWriteSequence(ir.getStreamMetadata());
-                for (IIOImage image : frames) {
-                    BufferedImage bufferedImage = (BufferedImage) image.getRenderedImage();
-                    try {
-                        BufferedImage moosificated = moosificateFrame(bufferedImage, mooseRequest, false);
-                        image.setRenderedImage(moosificated);
-                    } catch (Exception|jjil.core.Error e) {
-                        throw Throwables.propagate(e);
+                StreamingOutput stream = new StreamingOutput() {
+                    @Override
+                    public void write(OutputStream os) throws IOException,
+                            WebApplicationException {
+                        writeFrames(new ResponseTee(os, result));
                     }
-                    gifImageWriter.writeToSequence(image, null);
+                };
+                boolean streamed = asyncResponse != null && asyncResponse.resume(Response.ok(stream, MooseResult.GIF)
+                        .tag(new EntityTag(etagFor(this.mooseRequest)))
+                        .cacheControl(cacheControl())
+                        .header(HttpHeaders.VARY, HttpHeaders.ACCEPT)
+                        .build());
+                if (!streamed) {
+                    // Nobody to stream to anymore, the animation is still needed by the cache and coalesced requests
+                    writeFrames(this.result);
+                }
+                if (!this.complete) {
+                    throw new IOException("Animated gif was cut short");
                 }
-                gifImageWriter.endWriteSequence();
-                imageOutputStream.close();
 
-                return Optional.of(bos.toByteArray());
+                return Optional.of(new MooseResult(this.result.toByteArray(), MooseResult.GIF,
+                        etagFor(this.mooseRequest)));
             } catch (Throwable e) {
                 MooseLogger.logEventForErrorMoosificating(mooseRequest, e);
                 MooseLogger.getLogger().log(Level.WARNING, format("Error generating animated gif for url [%s]",
-                        mooseRequest.getOriginalImageUrl().toExternalForm()), e);
+                        mooseRequest.getSource()), e);
                 return Optional.absent();
+            } finally {
+                GifCodecs.release(this.reader);
+            }
+        }
+
+        private void writeFrames(OutputStream os) throws IOException {
+            ImageWriter gifImageWriter = GifCodecs.acquireWriter();
+            try {
+                writeFrames(gifImageWriter, os);
+            } catch (IOException | RuntimeException | Error e) {
+                // Whatever state the writer was left in, it's not going back to the pool
+                gifImageWriter.dispose();
+                throw e;
+            }
+            GifCodecs.release(gifImageWriter);
+        }
+
+        private void writeFrames(ImageWriter gifImageWriter, OutputStream os) throws IOException {
+            ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(os);
+            gifImageWriter.setOutput(imageOutputStream);
+            gifImageWriter.prepareWriteSequence(this.reader.getStreamMetadata());
+
+            // Faces are followed from frame to frame in order, so only drawing the moose is spread over frame threads
+            FaceTracker faceTracker = MooseConfig.getTrackingKeyframeInterval() > 1
+                    ? new FaceTracker(faceCascade, detectionPool) : null;
+
+            // Frames being moosificated, in the order they have to be written
+            Deque<Future<IIOImage>> pendingFrames = new ArrayDeque<>();
+            IIOImage image = this.firstFrame;
+            this.firstFrame = null;
+            int nextIndex = 1;
+            try {
+                while (image != null || !pendingFrames.isEmpty()) {
+                    while (image != null && pendingFrames.size() < Math.max(1, MooseConfig.getGifFramesInFlight())) {
+                        List<Rect> faces = faceTracker == null ? null : trackFaces(faceTracker, image);
+                        pendingFrames.addLast(frameExecutor.submit(new FrameMoosification(image, faces)));
+                        image = nextFrame(nextIndex++);
+                    }
+
+                    gifImageWriter.writeToSequence(Futures.getUnchecked(pendingFrames.removeFirst()), null);
+                    // Hand the encoded frame over rather than keeping it cached in the image stream
+                    imageOutputStream.flush();
+                    os.flush();
+                }
+            } finally {
+                for (Future<IIOImage> pendingFrame : pendingFrames) {
+                    pendingFrame.cancel(false);
+                }
+            }
+            gifImageWriter.endWriteSequence();
+            imageOutputStream.close();
+            this.complete = true;
+        }
+
+        private List<Rect> trackFaces(FaceTracker faceTracker, IIOImage image) {
+            try {
+                return faceTracker.track((BufferedImage) image.getRenderedImage());
+            } catch (jjil.core.Error e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        private class FrameMoosification implements Callable<IIOImage> {
+            private final IIOImage image;
+            private final List<Rect> faces;
+
+            /**
+             * @param faces the faces tracked in the frame, null to detect them along with the moosification
+             */
+            private FrameMoosification(IIOImage image, List<Rect> faces) {
+                this.image = image;
+                this.faces = faces;
+            }
+
+            @Override
+            public IIOImage call() throws Exception {
+                BufferedImage bufferedImage = (BufferedImage) this.image.getRenderedImage();
+                try {
+                    List<Rect> rectangles = this.faces == null ? detectFaces(bufferedImage) : this.faces;
+                    // Frames are decoded for us alone: draw on them in place, in the palette their metadata refers to
+                    moosificateFrame(bufferedImage, rectangles, mooseRequest, false);
+                } catch (jjil.core.Error e) {
+                    throw Throwables.propagate(e);
+                }
+                return this.image;
+            }
+        }
+
+        private IIOImage nextFrame(int index) {
+            try {
+                SourceImage.checkDimensions(this.reader, index);
+                return this.reader.readAll(index, null);
+            } catch (IndexOutOfBoundsException e) {
+                // Past the last frame
+                return null;
+            } catch (IOException e) {
+                // Frames are read ahead of the ones being written, end a truncated animation on its last good frame
+                // like browsers do rather than failing frames that were already moosificated
+                MooseLogger.getLogger().log(Level.WARNING, format("Animated gif at [%s] is unreadable from frame %d",
+                        mooseRequest.getSource(), index), e);
+                return null;
             }
         }
     }
 
-    private BufferedImage moosificateFrame(BufferedImage frame, MooseRequest mooseRequest, boolean throwsException)
-            throws jjil.core.Error, IOException {
-        RgbImage rgbImage = RgbImageJ2se.toRgbImage(frame);
-        RgbAvgGray toGray = new RgbAvgGray();
-        toGray.push(rgbImage);
+    /**
+     * Copies everything written to the result, and to the response for as long as the client reads it: a client
+     * going away doesn't stop a moosification other requests may be waiting for.
+     */
+    private static final class ResponseTee extends OutputStream {
+        private final OutputStream response;
+        private final OutputStream result;
+        private boolean clientGone;
 
-        InputStream profileInputStream = MoosificatorApp.class.getResourceAsStream("/profiles/HCSB.txt");
-        Gray8DetectHaarMultiScale detectHaar = new Gray8DetectHaarMultiScale(profileInputStream, 1, 30);
+        private ResponseTee(OutputStream response, OutputStream result) {
+            this.response = response;
+            this.result = result;
+        }
 
-        // We either keep the source size if small enough or we cap it to be fewer pixels than our max
-        int canvasWidth = frame.getWidth();
-        int canvasHeight = frame.getHeight();
-        double originalSurface = frame.getWidth() * frame.getHeight();
-        if (originalSurface > MAX_IMAGE_SIZE_IN_PIXELS) {
-            double resizeFactor = Math.sqrt(MAX_IMAGE_SIZE_IN_PIXELS / originalSurface);
-            canvasWidth = (int) (frame.getWidth() * resizeFactor);
-            canvasHeight = (int) (frame.getHeight() * resizeFactor);
+        @Override
+        public void write(int b) throws IOException {
+            this.result.write(b);
+            if (!this.clientGone) {
+                try {
+                    this.response.write(b);
+                } catch (IOException e) {
+                    this.clientGone = true;
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.result.write(b, off, len);
+            if (!this.clientGone) {
+                try {
+                    this.response.write(b, off, len);
+                } catch (IOException e) {
+                    this.clientGone = true;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!this.clientGone) {
+                try {
+                    this.response.flush();
+                } catch (IOException e) {
+                    this.clientGone = true;
+                }
+            }
         }
+    }
+
+    /**
+     * @return the faces found in the canvas of a still image, none without searching if it has no skin tone
+     */
+    private List<Rect> detectFacesInStill(BufferedImage canvas) throws jjil.core.Error {
+        if (MooseConfig.isSkinPrefilter() && !SkinTone.mayHaveFaces(canvas)) {
+            return Collections.emptyList();
+        }
+        return detectFaces(canvas);
+    }
+
+    /**
+     * @return the faces found in the frame, in frame coordinates
+     */
+    private List<Rect> detectFaces(BufferedImage frame) throws jjil.core.Error {
+        DetectionProxy detectionProxy = DetectionProxy.of(frame, MooseConfig.getDetectionResolution());
 
-        BufferedImage combined = deepCopy(frame);
-        List<Rect> rectangles = detectHaar.pushAndReturn(toGray.getFront());
-        Graphics g = combined.getGraphics();
+        Gray8DetectHaarMultiScale detectHaar = new Gray8DetectHaarMultiScale(this.faceCascade, 1, 30);
+        detectHaar.setPool(this.detectionPool);
+        return detectionProxy.toFrame(detectHaar.pushAndReturn(detectionProxy.getImage()));
+    }
 
-        g.drawImage(frame, 0, 0, canvasWidth, canvasHeight, null);
+    /**
+     * Draws the moose over the faces, in place: only the regions of the overlays are touched.
+     *
+     * @param canvas the image to moosificate, owned by the caller
+     * @param rectangles the faces in the canvas
+     * @return the canvas
+     */
+    private BufferedImage moosificateFrame(BufferedImage canvas, List<Rect> rectangles, MooseRequest mooseRequest,
+                                           boolean throwsException) throws IOException {
+        int canvasWidth = canvas.getWidth();
+        int canvasHeight = canvas.getHeight();
+        Graphics g = canvas.createGraphics();
+        try {
+            drawOverlays(g, canvasWidth, canvasHeight, rectangles, mooseRequest, throwsException);
+        } finally {
+            g.dispose();
+        }
+        return canvas;
+    }
 
+    private void drawOverlays(Graphics g, int canvasWidth, int canvasHeight, List<Rect> rectangles,
+                              MooseRequest mooseRequest, boolean throwsException) throws IOException {
         if (!rectangles.isEmpty()) {
             List<Rect> uniqueRectangles = findDistinctFaces(rectangles);
             for (Rect rectangle : uniqueRectangles) {
@@ -335,7 +1388,7 @@ public class MooseResource {
                     } else {
                         if (mooseRequest.hasOverlayImageFromUrl()) {
                             // Add overlay image from URL
-                            addOverlayImage(g, rectangle);
+                            addOverlayImage(g, rectangle, overlayFaceFor(mooseRequest));
                         }
                     }
 
@@ -361,49 +1414,114 @@ public class MooseResource {
             g.drawImage(this.noFaceFoundExceptionOverlay, (int) ((canvasWidth - overlayWidth) / 2.f),
                     (int) ((canvasHeight - overlayHeight) / 2.), overlayWidth, overlayHeight, null);
         }
+    }
 
-        return combined;
+    /**
+     * Converts a still image, once, to the canvas it is moosificated on: capped to be fewer pixels than our max and of
+     * a type the overlays are blitted onto quickly. An image that already fits is its own canvas.
+     */
+    private static BufferedImage canvasOf(BufferedImage image) {
+        // We either keep the source size if small enough or we cap it to be fewer pixels than our max
+        int canvasWidth = image.getWidth();
+        int canvasHeight = image.getHeight();
+        double originalSurface = image.getWidth() * image.getHeight();
+        if (originalSurface > MAX_IMAGE_SIZE_IN_PIXELS) {
+            double resizeFactor = Math.sqrt(MAX_IMAGE_SIZE_IN_PIXELS / originalSurface);
+            canvasWidth = (int) (image.getWidth() * resizeFactor);
+            canvasHeight = (int) (image.getHeight() * resizeFactor);
+        }
+
+        int canvasType = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB;
+        if (image.getType() == canvasType && image.getWidth() == canvasWidth && image.getHeight() == canvasHeight) {
+            return image;
+        }
+
+        BufferedImage canvas = new BufferedImage(canvasWidth, canvasHeight, canvasType);
+        Graphics2D g = canvas.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, canvasWidth, canvasHeight, null);
+        } finally {
+            g.dispose();
+        }
+        return canvas;
     }
 
     /**
-     * Transforms a source image to a moosificated version of it.
-     *
-     * @param mooseRequest mooseRequest containing URL of the image to moosificate
-     * @return the moosificated image
-     * @throws jjil.core.Error
-     * @throws IOException
+     * @return the key of the result of a still image without faces: the image and the format it is encoded in, the
+     * only parts of the request it depends on
      */
-    private BufferedImage moosificateImage(MooseRequest mooseRequest) throws jjil.core.Error, IOException {
-        MooseLogger.logEventForNewMooseSource(mooseRequest.getOriginalImageUrl());
-        BufferedImage singleFrame = ImageIO.read(mooseRequest.getOriginalImageUrl());
-        return moosificateFrame(singleFrame, mooseRequest, true);
+    private static String noFaceKeyFor(MooseRequest mooseRequest) {
+        return mooseRequest.getOriginalImageKey() + '|' + mooseRequest.getOutputFormat();
     }
 
-    private void addOverlayImage(Graphics g, Rect rectangle) {
-        // TODO: Implement
+    private void addOverlayImage(Graphics g, Rect rectangle, MooseImage overlayFace) {
+        overlayFace.drawImage(g, rectangle);
+    }
+
+    /**
+     * @return the face of the overlay image of a re-moose request, fetched and cut out the first time it is asked for
+     * @throws IOException if the overlay image can't be fetched or has no face
+     */
+    private MooseImage overlayFaceFor(final MooseRequest mooseRequest) throws IOException {
+        try {
+            return this.overlayFaces.get(mooseRequest.getOverlayImageKey(), new Callable<MooseImage>() {
+                @Override
+                public MooseImage call() throws IOException {
+                    try {
+                        return cutOutFace(fetch(mooseRequest.getOverlayImageUrl(),
+                                mooseRequest.getOverlayImageKey()));
+                    } catch (jjil.core.Error e) {
+                        throw Throwables.propagate(e);
+                    }
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Cuts the largest face out of an image, in an ellipse with soft edges so it blends over the face it's drawn on.
+     * The face is drawn exactly over the faces it replaces.
+     */
+    private MooseImage cutOutFace(SourceImage source) throws IOException, jjil.core.Error {
+        BufferedImage canvas = canvasOf(source.decode(MAX_IMAGE_SIZE_IN_PIXELS));
+        List<Rect> rectangles = detectFaces(canvas);
+        if (rectangles.isEmpty()) {
+            throw new IOException("No face found in the overlay image");
+        }
+        Rect face = findDistinctFaces(rectangles).get(0);
+
+        BufferedImage cutOut = new BufferedImage(face.getWidth(), face.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = cutOut.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.fillOval(0, 0, face.getWidth(), face.getHeight());
+            g.setComposite(AlphaComposite.SrcIn);
+            g.drawImage(canvas, -face.getLeft(), -face.getTop(), null);
+        } finally {
+            g.dispose();
+        }
+        return new MooseImage(cutOut, 0, 0, face.getHeight());
     }
 
     private void addAntlers(Graphics g, Rect rectangle) {
         float magnifyingFactor = rectangle.getHeight() / (float) this.rightAntler.getHeight() * 0.5f;
         float widthOffset =  0.25f * rectangle.getWidth();
         float heightOffset = 0.25f * rectangle.getHeight();
-        int leftAntlerWidth = (int) (this.leftAntler.getWidth() * magnifyingFactor);
-        int leftAntlerHeight = (int) (this.leftAntler.getHeight() * magnifyingFactor);
-        int rightAntlerWidth = (int) (this.rightAntler.getWidth() * magnifyingFactor);
-        int rightAntlerHeight = (int) (this.rightAntler.getHeight() * magnifyingFactor);
-
-        g.drawImage(this.leftAntler,
-                rectangle.getLeft() + (int) widthOffset - leftAntlerWidth,
-                rectangle.getTop() + (int) heightOffset - leftAntlerHeight,
-                leftAntlerWidth,
-                leftAntlerHeight,
+        BufferedImage leftAntler = this.leftAntler.scaledToHeight((int) (this.leftAntler.getHeight() * magnifyingFactor));
+        BufferedImage rightAntler = this.rightAntler.scaledToHeight((int) (this.rightAntler.getHeight() * magnifyingFactor));
+
+        g.drawImage(leftAntler,
+                rectangle.getLeft() + (int) widthOffset - leftAntler.getWidth(),
+                rectangle.getTop() + (int) heightOffset - leftAntler.getHeight(),
                 null);
 
-        g.drawImage(this.rightAntler,
+        g.drawImage(rightAntler,
                 rectangle.getRight() - (int) widthOffset,
-                rectangle.getTop() + (int) heightOffset - rightAntlerHeight,
-                rightAntlerWidth,
-                rightAntlerHeight,
+                rectangle.getTop() + (int) heightOffset - rightAntler.getHeight(),
                 null);
     }
 
@@ -448,16 +1566,4 @@ public class MooseResource {
                 && outer.getTop() <= inner.getTop()
                 && outer.getBottom() >= inner.getBottom();
     }
-
-    /**
-     * Creates a deep copy of an {@link BufferedImage}
-     * @param bi    the BufferedImage to copy
-     * @return      a deep copy of bi
-     */
-    static BufferedImage deepCopy(BufferedImage bi) {
-        ColorModel cm = bi.getColorModel();
-        boolean isAlphaPremultiplied = cm.isAlphaPremultiplied();
-        WritableRaster raster = bi.copyData(null);
-        return new BufferedImage(cm, raster, isAlphaPremultiplied, null);
-    }
 }
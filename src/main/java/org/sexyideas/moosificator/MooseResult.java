@@ -0,0 +1,66 @@
+package org.sexyideas.moosificator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * A moosificated image, or the faces found in an image in JSON, encoded and ready to be written to any number of
+ * responses as is. The content is either on the heap or in a segment of the {@link DiskCache}.
+ */
+public final class MooseResult {
+
+    public static final String PNG = "image/png";
+    public static final String JPEG = "image/jpeg";
+    public static final String GIF = "image/gif";
+    public static final String JSON = "application/json";
+
+    private final ByteBuffer content;
+    private final String contentType;
+    private final String etag;
+
+    /**
+     * @param bytes the encoded image, not copied so it must not be modified afterwards
+     * @param contentType the media type of the encoded image
+     * @param etag the strong entity tag of the moosification
+     */
+    public MooseResult(byte[] bytes, String contentType, String etag) {
+        this(ByteBuffer.wrap(bytes), contentType, etag);
+    }
+
+    MooseResult(ByteBuffer content, String contentType, String etag) {
+        this.content = content.asReadOnlyBuffer();
+        this.contentType = contentType;
+        this.etag = etag;
+    }
+
+    /**
+     * @return a view of the encoded image, positioned at its start
+     */
+    public ByteBuffer getContent() {
+        return content.duplicate();
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the strong entity tag of the moosification, known before it is even computed
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    public int getSize() {
+        return content.remaining();
+    }
+
+    /**
+     * Writes the encoded image, straight from the buffer it is held in.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        Channels.newChannel(os).write(getContent());
+    }
+}
@@ -6,6 +6,8 @@ import org.eclipse.jetty.servlet.DefaultServlet;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.glassfish.jersey.filter.LoggingFilter;
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.glassfish.jersey.media.multipart.MultiPartFeature;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.server.ServerProperties;
 import org.glassfish.jersey.server.TracingConfig;
@@ -16,6 +18,8 @@ import javax.ws.rs.ApplicationPath;
 public class MoosificatorApp extends ResourceConfig {
     public MoosificatorApp() {
         register(MooseResource.class);
+        register(JacksonFeature.class);
+        register(MultiPartFeature.class);
         KeenClient.initialize();
     }
 
@@ -27,6 +31,8 @@ public class MoosificatorApp extends ResourceConfig {
 
         ServletHolder jerseyServlet = context.addServlet(org.glassfish.jersey.servlet.ServletContainer.class, "/api/*");
         jerseyServlet.setInitOrder(1);
+        // Resource methods suspend their requests and answer from the fetch and compute executors
+        jerseyServlet.setAsyncSupported(true);
         jerseyServlet.setInitParameter("javax.ws.rs.Application", "org.sexyideas.moosificator.MoosificatorApp");
         jerseyServlet.setInitParameter("com.sun.jersey.config.property.packages", "jetty");
 
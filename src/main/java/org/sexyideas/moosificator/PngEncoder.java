@@ -0,0 +1,296 @@
+package org.sexyideas.moosificator;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes 8 bit PNGs with the trade-offs we pick rather than the ImageIO ones, which compress as hard as they can:
+ * the deflate level, the filter applied to the rows and whether images of at most 256 colors, like the flat error
+ * moose, are written with a palette. Images are written as RGB, or RGBA when some of their pixels aren't opaque.
+ * <p/>
+ * Each thread deflates with its own {@link Deflater}, reset between images rather than allocated for each one.
+ */
+public final class PngEncoder {
+
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH, // The same filter for every row
+        ADAPTIVE // Per row, the filter with the smallest sum of absolute differences, as ImageIO does
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater();
+        }
+    };
+
+    private final int compressionLevel;
+    private final Filter filter;
+    private final boolean palette;
+
+    /**
+     * @param compressionLevel the deflate level, from 0 (stored) to 9 (smallest)
+     * @param filter the filter applied to the rows
+     * @param palette true to write images of at most 256 colors with a palette
+     */
+    public PngEncoder(int compressionLevel, Filter filter, boolean palette) {
+        this.compressionLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+        this.filter = filter;
+        this.palette = palette;
+    }
+
+    public void encode(BufferedImage image, OutputStream os) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] row = new int[width];
+
+        // One pass over the pixels finds whether any of them is translucent and, if asked, the palette
+        boolean checkAlpha = image.getColorModel().hasAlpha();
+        boolean opaque = true;
+        ColorIndex colorIndex = this.palette ? new ColorIndex() : null;
+        for (int y = 0; y < height && (checkAlpha && opaque || colorIndex != null); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                opaque &= (row[x] >>> 24) == 0xFF;
+                if (colorIndex != null && !colorIndex.add(row[x])) {
+                    colorIndex = null;
+                }
+            }
+        }
+
+        int colorType;
+        int bytesPerPixel;
+        if (colorIndex != null) {
+            colorType = COLOR_TYPE_INDEXED;
+            bytesPerPixel = 1;
+        } else if (opaque) {
+            colorType = COLOR_TYPE_RGB;
+            bytesPerPixel = 3;
+        } else {
+            colorType = COLOR_TYPE_RGBA;
+            bytesPerPixel = 4;
+        }
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(SIGNATURE);
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(chunk);
+        header.writeInt(width);
+        header.writeInt(height);
+        header.writeByte(8); // Bits per sample
+        header.writeByte(colorType);
+        header.writeByte(0); // Deflate
+        header.writeByte(0); // Adaptive filtering, the filter of each row is given in front of it
+        header.writeByte(0); // Not interlaced
+        writeChunk(out, "IHDR", chunk);
+
+        if (colorIndex != null) {
+            writePalette(out, colorIndex, opaque);
+        }
+
+        chunk.reset();
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(this.compressionLevel);
+        try (DeflaterOutputStream data = new DeflaterOutputStream(chunk, deflater, 64 * 1024)) {
+            int rowBytes = width * bytesPerPixel;
+            byte[] previousRow = new byte[rowBytes];
+            byte[] currentRow = new byte[rowBytes];
+            byte[][] filtered = new byte[Filter.ADAPTIVE.ordinal()][];
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                toBytes(row, colorType, colorIndex, currentRow);
+                byte[] filteredRow = filter(currentRow, previousRow, bytesPerPixel, filtered);
+                data.write(filteredRow);
+
+                byte[] swap = previousRow;
+                previousRow = currentRow;
+                currentRow = swap;
+            }
+        }
+        writeChunk(out, "IDAT", chunk);
+
+        chunk.reset();
+        writeChunk(out, "IEND", chunk);
+        out.flush();
+    }
+
+    private static void toBytes(int[] row, int colorType, ColorIndex colorIndex, byte[] bytes) {
+        int i = 0;
+        for (int argb : row) {
+            if (colorType == COLOR_TYPE_INDEXED) {
+                bytes[i++] = (byte) colorIndex.indexOf(argb);
+                continue;
+            }
+            bytes[i++] = (byte) (argb >> 16);
+            bytes[i++] = (byte) (argb >> 8);
+            bytes[i++] = (byte) argb;
+            if (colorType == COLOR_TYPE_RGBA) {
+                bytes[i++] = (byte) (argb >>> 24);
+            }
+        }
+    }
+
+    /**
+     * @return the row filtered and prefixed by its filter type, in one of the <code>filtered</code> buffers
+     */
+    private byte[] filter(byte[] row, byte[] previousRow, int bytesPerPixel, byte[][] filtered) {
+        if (this.filter != Filter.ADAPTIVE) {
+            return filter(this.filter, row, previousRow, bytesPerPixel, filtered);
+        }
+
+        byte[] best = null;
+        long bestSum = Long.MAX_VALUE;
+        for (Filter candidate : Filter.values()) {
+            if (candidate == Filter.ADAPTIVE) {
+                continue;
+            }
+            byte[] filteredRow = filter(candidate, row, previousRow, bytesPerPixel, filtered);
+            long sum = 0;
+            for (int i = 1; i < filteredRow.length && sum < bestSum; i++) {
+                sum += Math.abs(filteredRow[i]);
+            }
+            if (sum < bestSum) {
+                best = filteredRow;
+                bestSum = sum;
+            }
+        }
+        return best;
+    }
+
+    private static byte[] filter(Filter filter, byte[] row, byte[] previousRow, int bytesPerPixel,
+                                 byte[][] filtered) {
+        byte[] out = filtered[filter.ordinal()];
+        if (out == null) {
+            out = filtered[filter.ordinal()] = new byte[row.length + 1];
+        }
+        out[0] = (byte) filter.ordinal();
+        for (int i = 0; i < row.length; i++) {
+            int raw = row[i] & 0xFF;
+            int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+            int up = previousRow[i] & 0xFF;
+            int upLeft = i >= bytesPerPixel ? previousRow[i - bytesPerPixel] & 0xFF : 0;
+            int predicted;
+            switch (filter) {
+                case SUB:
+                    predicted = left;
+                    break;
+                case UP:
+                    predicted = up;
+                    break;
+                case AVERAGE:
+                    predicted = (left + up) >> 1;
+                    break;
+                case PAETH:
+                    predicted = paeth(left, up, upLeft);
+                    break;
+                default:
+                    predicted = 0;
+                    break;
+            }
+            out[i + 1] = (byte) (raw - predicted);
+        }
+        return out;
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int distanceLeft = Math.abs(estimate - left);
+        int distanceUp = Math.abs(estimate - up);
+        int distanceUpLeft = Math.abs(estimate - upLeft);
+        if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+            return left;
+        }
+        return distanceUp <= distanceUpLeft ? up : upLeft;
+    }
+
+    private static void writePalette(DataOutputStream out, ColorIndex colorIndex, boolean opaque) throws IOException {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        int[] colors = colorIndex.getColors();
+        for (int argb : colors) {
+            chunk.write(argb >> 16);
+            chunk.write(argb >> 8);
+            chunk.write(argb);
+        }
+        writeChunk(out, "PLTE", chunk);
+
+        if (!opaque) {
+            chunk.reset();
+            for (int argb : colors) {
+                chunk.write(argb >>> 24);
+            }
+            writeChunk(out, "tRNS", chunk);
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, ByteArrayOutputStream data) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data.toByteArray(), 0, data.size());
+
+        out.writeInt(data.size());
+        out.write(typeBytes);
+        data.writeTo(out);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * The distinct colors of an image, in the order they are first seen, as long as there are no more than a palette
+     * holds. Open addressing over a table twice that size.
+     */
+    private static final class ColorIndex {
+        private static final int TABLE_SIZE = 2 * MAX_PALETTE_SIZE;
+
+        private final int[] colors = new int[MAX_PALETTE_SIZE];
+        private final int[] table = new int[TABLE_SIZE]; // Index of the color + 1, 0 for an empty slot
+        private int size;
+
+        /**
+         * @return false once the image has more colors than a palette holds
+         */
+        private boolean add(int argb) {
+            int slot = slotOf(argb);
+            if (this.table[slot] != 0) {
+                return true;
+            }
+            if (this.size == MAX_PALETTE_SIZE) {
+                return false;
+            }
+            this.colors[this.size] = argb;
+            this.table[slot] = ++this.size;
+            return true;
+        }
+
+        private int indexOf(int argb) {
+            return this.table[slotOf(argb)] - 1;
+        }
+
+        private int slotOf(int argb) {
+            int slot = (argb * 0x9E3779B9) >>> 23; // 9 bits, the size of the table
+            while (this.table[slot] != 0 && this.colors[this.table[slot] - 1] != argb) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            return slot;
+        }
+
+        private int[] getColors() {
+            return Arrays.copyOf(this.colors, this.size);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.sexyideas.moosificator;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Locale;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.google.common.hash.Hashing;
+
+import static java.lang.String.format;
+
+/**
+ * Raw bytes of a source image, fetched or uploaded once and buffered so the decoders can read them without going back
+ * to the origin. The kind of image is sniffed from its magic bytes rather than trusted from a content type.
+ */
+public final class SourceImage {
+
+    private static final byte[] GIF_MAGIC = {'G', 'I', 'F', '8'};
+
+    private final byte[] bytes;
+
+    private SourceImage(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Fetches an image with a single request, enforcing the connect and read timeouts and the maximum size from
+     * {@link MooseConfig}.
+     *
+     * @param url the location of the image, see {@link #isFetchable(URL)}
+     * @return the fetched image
+     * @throws IOException if the image can't be fetched in time or is too large
+     * @throws MalformedURLException if the URL isn't an http or https one
+     * @throws StatusException if the host answers with anything but a success
+     */
+    public static SourceImage fetch(URL url) throws IOException {
+        if (!isFetchable(url)) {
+            throw new MalformedURLException(format("Not fetching [%s], only http and https images are",
+                    url.toExternalForm()));
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        // HttpURLConnection only follows redirects to the same scheme, never to a local file
+        connection.setInstanceFollowRedirects(true);
+        connection.setConnectTimeout(MooseConfig.getFetchConnectTimeoutMillis());
+        connection.setReadTimeout(MooseConfig.getFetchReadTimeoutMillis());
+        int status = connection.getResponseCode();
+        if (status < 200 || status >= 300) {
+            connection.disconnect();
+            throw new StatusException(url, status);
+        }
+
+        // -1 when the length isn't announced, read() stops at the maximum anyway
+        long contentLength = connection.getContentLengthLong();
+        if (contentLength > MooseConfig.getFetchMaxBytes()) {
+            connection.disconnect();
+            throw new TooLargeException(format("Image at [%s] is %d bytes, more than the maximum of %d",
+                    url.toExternalForm(), contentLength, MooseConfig.getFetchMaxBytes()));
+        }
+
+        try (InputStream inputStream = connection.getInputStream()) {
+            return read(inputStream, MooseConfig.getFetchMaxBytes());
+        }
+    }
+
+    /**
+     * @return true if images can be fetched from the URL: only http and https ones, user supplied URLs must not read
+     * local files or reach other protocols
+     */
+    public static boolean isFetchable(URL url) {
+        String protocol = url.getProtocol().toLowerCase(Locale.ROOT);
+        return "http".equals(protocol) || "https".equals(protocol);
+    }
+
+    /**
+     * Buffers an image from a stream.
+     *
+     * @param inputStream the stream to read the image from, not closed
+     * @param maxBytes the maximum size of the image
+     * @return the image
+     * @throws IOException if the stream can't be read
+     * @throws TooLargeException if the stream holds more than <code>maxBytes</code>
+     */
+    public static SourceImage read(InputStream inputStream, int maxBytes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        byte[] chunk = new byte[16 * 1024];
+        int read;
+        while ((read = inputStream.read(chunk)) != -1) {
+            if (buffer.size() + read > maxBytes) {
+                throw new TooLargeException(format("Image is larger than the maximum of %d bytes", maxBytes));
+            }
+            buffer.write(chunk, 0, read);
+        }
+        return new SourceImage(buffer.toByteArray());
+    }
+
+    /**
+     * @return true if the image is a GIF, animated or not
+     */
+    public boolean isGif() {
+        if (this.bytes.length < GIF_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < GIF_MAGIC.length; i++) {
+            if (this.bytes[i] != GIF_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the first image, subsampled while it is decoded by the largest whole factor that keeps at least
+     * <code>maxPixels</code>: the full size of a large image is never allocated, and the smooth downscale to the
+     * final size is left to the caller as subsampling skips pixels. An image just over <code>maxPixels</code> is
+     * decoded at full size rather than halved. Its dimensions are read from the header first, so images declaring
+     * more than {@link MooseConfig#getMaxSourcePixels()} are rejected before any decoding.
+     *
+     * @param maxPixels the pixels the decoded image is reduced towards, it holds fewer than 4 times as many
+     * @return the decoded image
+     * @throws IOException if the image is unreadable, of an unsupported format or too large
+     */
+    public BufferedImage decode(int maxPixels) throws IOException {
+        try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(openStream())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, true, true);
+                long pixels = checkDimensions(reader, 0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = (int) Math.floor(Math.sqrt(pixels / (double) maxPixels));
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the dimensions of the first image, read from its header without decoding it
+     * @throws IOException if the image is unreadable or of an unsupported format
+     */
+    public Dimension getDimensions() throws IOException {
+        try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(openStream())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads the dimensions of an image from its header.
+     *
+     * @return the pixels of the image
+     * @throws IOException if the image declares more than {@link MooseConfig#getMaxSourcePixels()}
+     */
+    static long checkDimensions(ImageReader reader, int imageIndex) throws IOException {
+        int width = reader.getWidth(imageIndex);
+        int height = reader.getHeight(imageIndex);
+        long pixels = (long) width * height;
+        if (pixels > MooseConfig.getMaxSourcePixels()) {
+            throw new IOException(format("Image is %dx%d, more than the maximum of %d pixels",
+                    width, height, MooseConfig.getMaxSourcePixels()));
+        }
+        return pixels;
+    }
+
+    /**
+     * @return the SHA-256 of the bytes of the image, in hex, telling uploads of the same image apart from others
+     */
+    public String getContentHash() {
+        return Hashing.sha256().hashBytes(this.bytes).toString();
+    }
+
+    public int getSize() {
+        return this.bytes.length;
+    }
+
+    public InputStream openStream() {
+        return new ByteArrayInputStream(this.bytes);
+    }
+
+    /**
+     * The host of an image answered its request with an error, or with a redirect that wasn't followed.
+     */
+    public static final class StatusException extends IOException {
+        private final int status;
+
+        public StatusException(URL url, int status) {
+            super(format("Fetching [%s] got HTTP status %d", url.toExternalForm(), status));
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Thrown when an image holds more bytes than allowed.
+     */
+    public static final class TooLargeException extends IOException {
+        public TooLargeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.sexyideas.moosificator;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+
+/**
+ * An overlay drawn at many sizes. Renditions are scaled once per bucket of {@link #BUCKET_PIXELS} pixels of height
+ * and kept in premultiplied ARGB, so drawing one is a plain blit rather than a rescale of the full size image. Faces
+ * of an animation mostly keep their size, so its frames all draw the same few renditions.
+ * <p/>
+ * The renditions of every sprite share one cache bounded by their size, {@link MooseConfig#getSpriteCacheMaxBytes()}:
+ * a rendition over a large face alone can weigh tens of MB.
+ */
+public final class Sprite {
+
+    private static final int BUCKET_PIXELS = 8;
+
+    private static final LoadingCache<Rendition, BufferedImage> RENDITIONS = CacheBuilder.newBuilder()
+            // A single segment, segments each get an equal share of the budget and a large rendition wouldn't fit
+            .concurrencyLevel(1)
+            .maximumWeight(MooseConfig.getSpriteCacheMaxBytes())
+            .weigher(new Weigher<Rendition, BufferedImage>() {
+                @Override
+                public int weigh(Rendition key, BufferedImage rendition) {
+                    return rendition.getWidth() * rendition.getHeight() * 4;
+                }
+            })
+            .build(new CacheLoader<Rendition, BufferedImage>() {
+                @Override
+                public BufferedImage load(Rendition key) {
+                    return key.sprite.render(key.height);
+                }
+            });
+
+    private final BufferedImage image;
+
+    public Sprite(BufferedImage image) {
+        this.image = image;
+    }
+
+    public int getWidth() {
+        return this.image.getWidth();
+    }
+
+    public int getHeight() {
+        return this.image.getHeight();
+    }
+
+    /**
+     * @param height the height wanted
+     * @return the rendition closest to that height, keeping the proportions of the image. It is shared and must
+     * not be modified.
+     */
+    public BufferedImage scaledToHeight(int height) {
+        int bucket = Math.max(1, Math.round(height / (float) BUCKET_PIXELS));
+        return RENDITIONS.getUnchecked(new Rendition(this, bucket * BUCKET_PIXELS));
+    }
+
+    private BufferedImage render(int height) {
+        int width = Math.max(1, Math.round(height * this.image.getWidth() / (float) this.image.getHeight()));
+        BufferedImage rendition = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = rendition.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(this.image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return rendition;
+    }
+
+    /**
+     * A sprite at a height, sprites are told apart by identity.
+     */
+    private static final class Rendition {
+        private final Sprite sprite;
+        private final int height;
+
+        private Rendition(Sprite sprite, int height) {
+            this.sprite = sprite;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Rendition)) {
+                return false;
+            }
+            Rendition rhs = (Rendition) obj;
+            return this.sprite == rhs.sprite && this.height == rhs.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(this.sprite) + this.height;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.sexyideas.moosificator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import org.junit.Test;
+
+public class GifCacheTest {
+
+    @Test
+    public void onlyCountsMissesRecordedForAnimations() throws Exception {
+        GifCache gifCache = new GifCache(1024 * 1024);
+        MooseRequest still = request("still");
+        MooseRequest animation = request("animation");
+
+        assertNull(gifCache.getIfPresent(still));
+        assertNull(gifCache.getIfPresent(animation));
+        gifCache.recordMiss(animation);
+        MooseResult result = new MooseResult(new byte[100], MooseResult.GIF, "etag");
+        gifCache.put(animation, Optional.of(result));
+        assertSame(result, gifCache.getIfPresent(animation));
+
+        Map<String, Object> stats = gifCache.getStats();
+        assertEquals(1L, stats.get("hits"));
+        assertEquals(1L, stats.get("misses"));
+        assertEquals(0.5, stats.get("hitRate"));
+    }
+
+    private static MooseRequest request(String contentHash) throws MooseException {
+        return MooseRequest.newBuilder()
+                .withRequestType(MooseRequest.RequestType.ANTLER)
+                .withUploadedImage(contentHash)
+                .build();
+    }
+}
@@ -0,0 +1,90 @@
+package org.sexyideas.moosificator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+
+import jjil.core.Gray8Image;
+import jjil.core.Rect;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class Gray8DetectHaarMultiScaleTest {
+
+    private static HaarCascade cascade;
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void setUp() throws Throwable {
+        try (InputStream profile = Gray8DetectHaarMultiScaleTest.class.getResourceAsStream(
+                HaarCascade.DEFAULT_PROFILE)) {
+            cascade = HaarCascade.fromStream(profile);
+        }
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void parallelFindsTheSerialFacesOnASingleFace() throws Throwable {
+        Gray8Image image = DetectionProxy.of(ImageIO.read(new File("src/main/webapp/images/original.jpg")), 0)
+                .getImage();
+
+        List<String> serial = detect(image, null);
+        assertEquals(1, serial.size());
+        assertEquals(serial, detect(image, pool));
+    }
+
+    @Test
+    public void parallelFindsTheSerialFacesOnFacesAcrossBands() throws Throwable {
+        // Faces on every band of rows, so hits near the edge of a band mask and skip windows of the next one
+        for (int resolution : new int[]{0, 640, 320}) {
+            Gray8Image image = DetectionProxy.of(tiledFaces(6), resolution).getImage();
+
+            List<String> serial = detect(image, null);
+            assertTrue(serial.size() > 1);
+            assertEquals("at resolution " + resolution, serial, detect(image, pool));
+        }
+    }
+
+    private static List<String> detect(Gray8Image image, ForkJoinPool pool) throws Throwable {
+        Gray8DetectHaarMultiScale detector = new Gray8DetectHaarMultiScale(cascade, 1, 30);
+        detector.setPool(pool);
+        List<String> found = new ArrayList<>();
+        for (Rect rect : detector.pushAndReturn(image)) {
+            found.add(rect.getLeft() + "," + rect.getTop() + " " + rect.getWidth() + "x" + rect.getHeight());
+        }
+        return found;
+    }
+
+    /**
+     * @return a grid of the face of the sample image, every other row shifted
+     */
+    private static BufferedImage tiledFaces(int faces) throws Throwable {
+        BufferedImage face = ImageIO.read(new File("src/main/webapp/images/original.jpg")).getSubimage(85, 7, 100, 100);
+        BufferedImage tiled = new BufferedImage(100 * faces, 100 * faces, BufferedImage.TYPE_INT_RGB);
+        Graphics g = tiled.getGraphics();
+        try {
+            for (int row = 0; row < faces; row++) {
+                for (int column = 0; column < faces; column++) {
+                    g.drawImage(face, column * 100 + (row % 2) * 30, row * 100, null);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return tiled;
+    }
+}
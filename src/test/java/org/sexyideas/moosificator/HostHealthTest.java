@@ -0,0 +1,53 @@
+package org.sexyideas.moosificator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import org.junit.Test;
+
+public class HostHealthTest {
+
+    @Test
+    public void clientErrorsOnlyAffectTheirImage() throws Exception {
+        HostHealth hostHealth = new HostHealth(3, 60000, 60000);
+        for (int i = 0; i < 10; i++) {
+            URL url = new URL("http://cdn.example.com/private" + i + ".png");
+            hostHealth.recordFailure(url, url.toExternalForm(), new SourceImage.StatusException(url, 403));
+        }
+
+        URL failed = new URL("http://cdn.example.com/private0.png");
+        URL other = new URL("http://cdn.example.com/public.png");
+        assertFalse(hostHealth.allowFetch(failed, failed.toExternalForm()));
+        assertTrue(hostHealth.allowFetch(other, other.toExternalForm()));
+    }
+
+    @Test
+    public void serverErrorsAndTimeoutsOpenTheCircuitOfTheHost() throws Exception {
+        HostHealth hostHealth = new HostHealth(3, 60000, 60000);
+        URL first = new URL("http://cdn.example.com/a.png");
+        URL second = new URL("http://cdn.example.com/b.png");
+        URL third = new URL("http://cdn.example.com/c.png");
+        hostHealth.recordFailure(first, first.toExternalForm(), new SourceImage.StatusException(first, 503));
+        hostHealth.recordFailure(second, second.toExternalForm(), new SocketTimeoutException("Read timed out"));
+        URL other = new URL("http://cdn.example.com/other.png");
+        assertTrue(hostHealth.allowFetch(other, other.toExternalForm()));
+
+        hostHealth.recordFailure(third, third.toExternalForm(), new SourceImage.StatusException(third, 500));
+        assertFalse(hostHealth.allowFetch(other, other.toExternalForm()));
+    }
+
+    @Test
+    public void triesTheHostAgainOnceTheCircuitWasOpenForAWhile() throws Exception {
+        HostHealth hostHealth = new HostHealth(1, 0, 60000);
+        URL failed = new URL("http://cdn.example.com/a.png");
+        hostHealth.recordFailure(failed, failed.toExternalForm(), new SocketTimeoutException("Read timed out"));
+
+        URL other = new URL("http://cdn.example.com/other.png");
+        assertTrue(hostHealth.allowFetch(other, other.toExternalForm()));
+        hostHealth.recordSuccess(other);
+        assertTrue(hostHealth.allowFetch(other, other.toExternalForm()));
+    }
+}
@@ -0,0 +1,31 @@
+package org.sexyideas.moosificator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class MooseRequestTest {
+
+    @Test
+    public void animationsAreTheSameWhateverTheOutputFormat() throws Exception {
+        MooseRequest png = request("png");
+        MooseRequest jpeg = request("jpeg");
+        assertNotEquals(png, jpeg);
+
+        assertSame(png, png.forAnimation());
+        assertEquals(png, jpeg.forAnimation());
+        assertEquals(png.hashCode(), jpeg.forAnimation().hashCode());
+        assertEquals(png.getKey(), jpeg.forAnimation().getKey());
+    }
+
+    private static MooseRequest request(String outputFormat) throws MooseException {
+        return MooseRequest.newBuilder()
+                .withRequestType(MooseRequest.RequestType.MOOSE)
+                .withUploadedImage("animation")
+                .withOverlayImageName("moose")
+                .withOutputFormat(outputFormat)
+                .build();
+    }
+}
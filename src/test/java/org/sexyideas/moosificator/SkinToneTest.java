@@ -0,0 +1,56 @@
+package org.sexyideas.moosificator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class SkinToneTest {
+
+    @Test
+    public void searchesAPhotoOfAFace() throws Exception {
+        assertTrue(SkinTone.mayHaveFaces(ImageIO.read(new File("src/main/webapp/images/original.jpg"))));
+    }
+
+    @Test
+    public void skipsAColorImageWithoutSkinTones() {
+        assertFalse(SkinTone.mayHaveFaces(filled(new Color(40, 90, 200), BufferedImage.TYPE_INT_RGB)));
+    }
+
+    @Test
+    public void searchesAGrayscaleImage() {
+        assertTrue(SkinTone.mayHaveFaces(filled(Color.GRAY, BufferedImage.TYPE_BYTE_GRAY)));
+    }
+
+    @Test
+    public void searchesAColorImageWithASmallPatchOfSkin() {
+        BufferedImage image = filled(new Color(40, 90, 200), BufferedImage.TYPE_INT_RGB);
+        Graphics g = image.getGraphics();
+        try {
+            // About the smallest face found on a canvas this size
+            g.setColor(new Color(224, 172, 140));
+            g.fillRect(800, 500, 60, 60);
+        } finally {
+            g.dispose();
+        }
+        assertTrue(SkinTone.mayHaveFaces(image));
+    }
+
+    private static BufferedImage filled(Color color, int type) {
+        BufferedImage image = new BufferedImage(1920, 1080, type);
+        Graphics g = image.getGraphics();
+        try {
+            g.setColor(color);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+}
@@ -0,0 +1,46 @@
+package org.sexyideas.moosificator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class SourceImageTest {
+
+    private static final int MAX_PIXELS = 1920 * 1080;
+
+    @Test
+    public void decodesAnImageJustOverTheBudgetAtFullSize() throws Exception {
+        BufferedImage decoded = sourceOf(1920, 1200).decode(MAX_PIXELS);
+
+        assertEquals(1920, decoded.getWidth());
+        assertEquals(1200, decoded.getHeight());
+    }
+
+    @Test
+    public void subsamplesDownToNoLessThanTheBudget() throws Exception {
+        // 4.4 times the budget: subsampled by 2, not 3
+        BufferedImage decoded = sourceOf(3840, 2400).decode(MAX_PIXELS);
+
+        assertEquals(1920, decoded.getWidth());
+        assertEquals(1200, decoded.getHeight());
+    }
+
+    @Test
+    public void decodesAnImageWithinTheBudgetAtFullSize() throws Exception {
+        BufferedImage decoded = sourceOf(640, 480).decode(MAX_PIXELS);
+
+        assertEquals(640, decoded.getWidth());
+        assertEquals(480, decoded.getHeight());
+    }
+
+    private static SourceImage sourceOf(int width, int height) throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", png);
+        return SourceImage.read(new ByteArrayInputStream(png.toByteArray()), Integer.MAX_VALUE);
+    }
+}